@@ -0,0 +1,19 @@
+package com.tomvd;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// representative device payloads, see src/jmh/resources/fixtures
+public final class Fixtures {
+    public static final String POWERSTREAM_SN = "HW51ZEH4SF5T1234";
+    public static final String BATTERY_SN = "R621ZEB4XF8T5678";
+
+    private Fixtures() {}
+
+    public static byte[] load(String name) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) throw new IOException("Missing fixture " + name);
+            return in.readAllBytes();
+        }
+    }
+}
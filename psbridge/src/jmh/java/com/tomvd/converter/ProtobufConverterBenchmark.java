@@ -0,0 +1,42 @@
+package com.tomvd.converter;
+
+import com.tomvd.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+@State(Scope.Benchmark)
+public class ProtobufConverterBenchmark {
+    private ProtobufConverter converter;
+    private UpstreamRegistry registry;
+    private byte[] upstream;
+    private int[] heartbeat;
+
+    @Setup
+    public void setup() throws IOException {
+        converter = new ProtobufConverter();
+        upstream = Fixtures.load("heartbeat-upstream.bin");
+        registry = new UpstreamRegistry((device, cmdFunc, cmdId, frame) -> {})
+                .register(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID, "InverterHeartbeat",
+                        ProtobufConverter::readHeartbeat, (device, seq, values) -> heartbeat = values);
+    }
+
+    @Benchmark
+    public int[] convert() {
+        converter.convert(upstream, 0, registry);
+        return heartbeat;
+    }
+
+    @Benchmark
+    public byte[] powerSettingPayload() {
+        return converter.getPowerSettingPayload(347, Fixtures.POWERSTREAM_SN, 1_728_915_128);
+    }
+
+    @Benchmark
+    public byte[] heartBeat() {
+        return converter.convertHeartBeat(1_728_915_128);
+    }
+}
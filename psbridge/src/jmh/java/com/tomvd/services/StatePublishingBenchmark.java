@@ -0,0 +1,75 @@
+package com.tomvd.services;
+
+import com.tomvd.Fixtures;
+import com.tomvd.cluster.ClusterMembership;
+import com.tomvd.configuration.BatteryConfiguration;
+import com.tomvd.configuration.BrokerConfiguration;
+import com.tomvd.configuration.ClusterConfiguration;
+import com.tomvd.configuration.DebugConfiguration;
+import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.configuration.HistoryConfiguration;
+import com.tomvd.configuration.IngestConfiguration;
+import com.tomvd.configuration.KeepAliveConfiguration;
+import com.tomvd.configuration.MQTTConfiguration;
+import com.tomvd.configuration.StateConfiguration;
+import com.tomvd.converter.BmsStatusParser;
+import com.tomvd.converter.HeartbeatFieldTable;
+import com.tomvd.converter.ProtobufConverter;
+import com.tomvd.converter.UpstreamRegistry;
+import com.tomvd.history.TelemetryHistory;
+import com.tomvd.metrics.BridgeMetrics;
+import com.tomvd.mqtt.MqttLinkFactory;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+
+@State(Scope.Benchmark)
+public class StatePublishingBenchmark {
+    private EcoflowService service;
+    // the seven default fields, or every InverterHeartbeat field
+    @Param({"default", "all"})
+    public String fields;
+    private int[] heartbeat;
+    private byte[] bmsStatus;
+
+    @Setup
+    public void setup() throws IOException {
+        DevicesConfiguration devices = new DevicesConfiguration();
+        devices.setPowerstreams(List.of(Fixtures.POWERSTREAM_SN));
+        devices.setBatteries(List.of(Fixtures.BATTERY_SN));
+        ProtobufConverter converter = new ProtobufConverter();
+        DeviceStateStore store = new DeviceStateStore(devices);
+        StateConfiguration state = new StateConfiguration();
+        if (fields.equals("all")) state.setFields(List.of(HeartbeatFieldTable.ALL));
+        HeartbeatFieldTable table = new HeartbeatFieldTable(state);
+        MQTTConfiguration mqtt = new MQTTConfiguration();
+        MqttLinkFactory links = new MqttLinkFactory(mqtt, new BrokerConfiguration(), new ClusterConfiguration());
+        service = new EcoflowService(converter, devices, mqtt, links, store,
+                new StatePublishFilter(state, store, table), new IngestPipeline(new IngestConfiguration()),
+                null, null, // commands and acks are not touched by the benchmarked methods
+                new TelemetryHistory(new HistoryConfiguration(), store, table), new BridgeMetrics(new SimpleMeterRegistry()), table,
+                new ClusterMembership(new ClusterConfiguration(), devices, links, null), // not clustered, never schedules
+                new BmsStatusParser(new BatteryConfiguration()), new KeepAliveConfiguration(), new DebugConfiguration());
+        converter.convert(Fixtures.load("heartbeat-upstream.bin"), 0,
+                new UpstreamRegistry((device, cmdFunc, cmdId, frame) -> {})
+                        .register(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID, "InverterHeartbeat",
+                                ProtobufConverter::readHeartbeat, (device, seq, values) -> heartbeat = values));
+        bmsStatus = Fixtures.load("bms-status.json");
+    }
+
+    @Benchmark
+    public byte[] heartbeatState() {
+        return service.buildHeartbeatState(heartbeat);
+    }
+
+    @Benchmark
+    public byte[] batteryState() throws IOException {
+        return service.buildBatteryState(bmsStatus);
+    }
+}
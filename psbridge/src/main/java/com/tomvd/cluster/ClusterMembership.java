@@ -0,0 +1,232 @@
+package com.tomvd.cluster;
+
+import com.tomvd.configuration.ClusterConfiguration;
+import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.mqtt.MqttLink;
+import com.tomvd.mqtt.MqttLinkFactory;
+import io.micronaut.context.event.StartupEvent;
+import io.micronaut.runtime.event.annotation.EventListener;
+import io.micronaut.scheduling.TaskExecutors;
+import io.micronaut.scheduling.TaskScheduler;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.inject.Singleton;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/*
+Clustered mode (cluster.enabled): psbridge instances on the same broker share the configured devices.
+
+Every member publishes a retained <prefix>/members/<node> each heartbeat interval; a member not heard from within
+cluster.lease-ttl is gone. Devices are assigned with rendezvous hashing over the live members, so when a member
+joins or dies only its share of the devices moves. Liveness is judged on local receive time, clocks don't matter.
+
+The site-level controller runs on the leader only: the lowest live node id, holding a lease on the retained
+<prefix>/leader topic. A node only claims the lease once the previous holder stopped renewing it for a full TTL or
+released it, and it stops acting as leader itself before its own lease could have run out anywhere else, so there is
+never more than one controller. A leader that sees a lower node id join releases the lease for it.
+
+Every member needs its own cluster.node-id and the heartbeat interval has to stay well below half the lease TTL.
+Clustering needs a shared external broker, it does not combine with broker.enabled.
+Without cluster.enabled this node owns every device and is always the leader.
+Ownership listeners hear about every device this node takes over, including its first share after joining.
+ */
+@Singleton
+public class ClusterMembership {
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterMembership.class);
+    private static final byte[] RELEASE = new byte[0];
+    private final ClusterConfiguration config;
+    private final MqttLinkFactory links;
+    private final TaskScheduler taskScheduler;
+    private final List<String> devices = new ArrayList<>();
+    private final String nodeId;
+    private final String membersTopic;
+    private final String leaderTopic;
+    private final long ttlNanos;
+    // node id -> System.nanoTime() it was last heard from
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> ownershipListeners = new CopyOnWriteArrayList<>();
+    private MqttLink link;
+    private volatile Set<String> owned;
+    private volatile List<String> members = List.of();
+    private volatile String leaseHolder;
+    private volatile long leaseSeen;
+    private volatile boolean leader;
+    private volatile long leaseRenewed;
+
+    @Inject
+    public ClusterMembership(ClusterConfiguration config, DevicesConfiguration devicesConfiguration, MqttLinkFactory links,
+                             @Named(TaskExecutors.SCHEDULED) TaskScheduler taskScheduler) {
+        this.config = config;
+        this.links = links;
+        this.taskScheduler = taskScheduler;
+        if (devicesConfiguration.getPowerstreams() != null) devices.addAll(devicesConfiguration.getPowerstreams());
+        if (devicesConfiguration.getBatteries() != null) devices.addAll(devicesConfiguration.getBatteries());
+        this.nodeId = config.getNodeId();
+        this.membersTopic = config.getTopicPrefix() + "/members/";
+        this.leaderTopic = config.getTopicPrefix() + "/leader";
+        this.ttlNanos = config.getLeaseTtl().toNanos();
+        // a clustered node owns nothing until it has had a heartbeat interval to hear from the others
+        this.owned = config.isEnabled() ? Set.of() : Set.copyOf(devices);
+    }
+
+    @EventListener
+    public void onStartup(StartupEvent event) {
+        if (!config.isEnabled()) return;
+        try {
+            join(links.create("cluster", "psbridge-cluster"));
+        } catch (MqttException e) {
+            LOG.error("Error starting cluster membership", e);
+            return;
+        }
+        LOG.info("Joining cluster as {}", nodeId);
+        taskScheduler.scheduleAtFixedRate(config.getHeartbeatInterval(), config.getHeartbeatInterval(), this::tick);
+    }
+
+    // the heartbeat is tick(), every heartbeat interval
+    void join(MqttLink link) {
+        this.link = link;
+        link.subscribe(membersTopic + "+", topic -> (t, payload) -> onMember(t.substring(membersTopic.length()), payload));
+        link.subscribe(leaderTopic, (topic, payload) -> onLeader(payload));
+        link.connect();
+    }
+
+    @PreDestroy
+    public void close() {
+        if (link == null) return;
+        // leave right away instead of making the others wait for the lease to run out
+        if (leader) link.publish(leaderTopic, RELEASE, 1, true);
+        link.publish(membersTopic + nodeId, RELEASE, 1, true);
+        link.close();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean owns(String deviceId) {
+        return owned.contains(deviceId);
+    }
+
+    public boolean isLeader() {
+        if (!config.isEnabled()) return true;
+        // stop acting well before the others could consider the lease expired
+        return leader && System.nanoTime() - leaseRenewed < ttlNanos / 2;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    // called with every device this node takes over, from the cluster heartbeat
+    public void addOwnershipListener(Consumer<String> listener) {
+        ownershipListeners.add(listener);
+    }
+
+    private void onMember(String node, byte[] payload) {
+        if (payload.length == 0) {
+            lastSeen.remove(node);
+        } else {
+            lastSeen.put(node, System.nanoTime());
+        }
+    }
+
+    private void onLeader(byte[] payload) {
+        leaseHolder = payload.length == 0 ? null : new String(payload, StandardCharsets.UTF_8);
+        leaseSeen = System.nanoTime();
+    }
+
+    synchronized void tick() {
+        try {
+            long now = System.nanoTime();
+            link.publish(membersTopic + nodeId, String.valueOf(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8), 1, true);
+            lastSeen.put(nodeId, now);
+
+            TreeSet<String> live = new TreeSet<>();
+            lastSeen.forEach((node, seen) -> {
+                if (now - seen < ttlNanos) live.add(node);
+            });
+            if (!live.equals(new TreeSet<>(members))) {
+                rebalance(List.copyOf(live));
+            }
+
+            String holder = leaseHolder;
+            boolean lowest = live.first().equals(nodeId);
+            if (lowest && (holder == null || holder.equals(nodeId) || now - leaseSeen >= ttlNanos)) {
+                if (link.publish(leaderTopic, nodeId.getBytes(StandardCharsets.UTF_8), 1, true)) {
+                    leaseRenewed = now;
+                    if (!leader) LOG.info("{} is now the cluster leader", nodeId);
+                    leader = true;
+                }
+                // the leader cleans up retained membership of members that are gone
+                lastSeen.forEach((node, seen) -> {
+                    if (now - seen >= ttlNanos) {
+                        lastSeen.remove(node);
+                        link.publish(membersTopic + node, RELEASE, 1, true);
+                    }
+                });
+            } else if (leader) {
+                leader = false;
+                LOG.info("{} hands over cluster leadership to {}", nodeId, live.first());
+                link.publish(leaderTopic, RELEASE, 1, true);
+            }
+        } catch (Exception e) {
+            LOG.error("Error in cluster heartbeat", e);
+        }
+    }
+
+    private void rebalance(List<String> live) {
+        Set<String> mine = new HashSet<>();
+        for (String device : devices) {
+            if (nodeId.equals(owner(device, live))) mine.add(device);
+        }
+        Set<String> previous = owned;
+        members = live;
+        owned = Set.copyOf(mine);
+        LOG.info("Cluster members {}, {} owns {} of {} devices", live, nodeId, mine.size(), devices.size());
+        for (String device : mine) {
+            if (previous.contains(device)) continue;
+            for (Consumer<String> listener : ownershipListeners) {
+                try {
+                    listener.accept(device);
+                } catch (Exception e) {
+                    LOG.error("Error in ownership listener for {}", device, e);
+                }
+            }
+        }
+    }
+
+    // rendezvous hashing: the member with the highest score for a device owns it
+    static String owner(String device, List<String> members) {
+        String best = null;
+        long bestScore = Long.MIN_VALUE;
+        for (String member : members) {
+            long score = mix(((long) member.hashCode() << 32) | (device.hashCode() & 0xffffffffL));
+            if (best == null || score > bestScore) {
+                best = member;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    // splitmix64 finalizer, spreads the combined hash codes over the whole range
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,13 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.util.List;
+
+@ConfigurationProperties("battery")
+public class BatteryConfiguration {
+    // bmsStatus params to export, by their name in the post (f32ShowSoc is published as soc)
+    List<String> fields = List.of("f32ShowSoc");
+    public List<String> getFields() { return fields; }
+    public void setFields(List<String> fields) { this.fields = fields; }
+}
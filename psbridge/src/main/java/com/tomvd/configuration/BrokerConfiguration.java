@@ -0,0 +1,35 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+// embedded broker, replaces the separate mosquitto container when enabled
+@ConfigurationProperties("broker")
+public class BrokerConfiguration {
+    boolean enabled;
+    String host = "0.0.0.0";
+    int port = 1883;
+    int sslPort = 8883;
+    // PEM certificate and PKCS#8 key for the TLS listener the devices connect to, no TLS listener without them
+    String certFile;
+    String keyFile;
+    // user:sha256(password) per line, anonymous clients are allowed without one
+    String passwordFile;
+    // directory for retained messages and sessions, without it they are kept in memory only and gone after a restart
+    String dataPath;
+    public boolean isEnabled() { return enabled; }
+    public void setEnabled(boolean enabled) { this.enabled = enabled; }
+    public String getHost() { return host; }
+    public void setHost(String host) { this.host = host; }
+    public int getPort() { return port; }
+    public void setPort(int port) { this.port = port; }
+    public int getSslPort() { return sslPort; }
+    public void setSslPort(int sslPort) { this.sslPort = sslPort; }
+    public String getCertFile() { return certFile; }
+    public void setCertFile(String certFile) { this.certFile = certFile; }
+    public String getKeyFile() { return keyFile; }
+    public void setKeyFile(String keyFile) { this.keyFile = keyFile; }
+    public String getPasswordFile() { return passwordFile; }
+    public void setPasswordFile(String passwordFile) { this.passwordFile = passwordFile; }
+    public String getDataPath() { return dataPath; }
+    public void setDataPath(String dataPath) { this.dataPath = dataPath; }
+}
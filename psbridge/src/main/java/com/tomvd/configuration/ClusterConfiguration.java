@@ -0,0 +1,38 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.UUID;
+
+// several psbridge instances on one broker sharing the devices, see ClusterMembership
+@ConfigurationProperties("cluster")
+public class ClusterConfiguration {
+    boolean enabled;
+    // unique per instance, defaults to the host name (the container name under docker)
+    String nodeId = defaultNodeId();
+    String topicPrefix = "psbridge/cluster";
+    Duration heartbeatInterval = Duration.ofSeconds(5);
+    // a member or leader that wasn't heard from for this long is gone
+    Duration leaseTtl = Duration.ofSeconds(15);
+    public boolean isEnabled() { return enabled; }
+    public void setEnabled(boolean enabled) { this.enabled = enabled; }
+    public String getNodeId() { return nodeId; }
+    public void setNodeId(String nodeId) { this.nodeId = nodeId; }
+    public String getTopicPrefix() { return topicPrefix; }
+    public void setTopicPrefix(String topicPrefix) { this.topicPrefix = topicPrefix; }
+    public Duration getHeartbeatInterval() { return heartbeatInterval; }
+    public void setHeartbeatInterval(Duration heartbeatInterval) { this.heartbeatInterval = heartbeatInterval; }
+    public Duration getLeaseTtl() { return leaseTtl; }
+    public void setLeaseTtl(Duration leaseTtl) { this.leaseTtl = leaseTtl; }
+
+    private static String defaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties("commands")
+public class CommandConfiguration {
+    // minimum time between two setpoints sent to the same powerstream
+    Duration minInterval = Duration.ofSeconds(2);
+    // a power setting the device hasn't acknowledged within this time is sent again
+    Duration ackTimeout = Duration.ofSeconds(3);
+    // resends before a power setting counts as failed
+    int maxRetries = 2;
+    public Duration getMinInterval() { return minInterval; }
+    public void setMinInterval(Duration minInterval) { this.minInterval = minInterval; }
+    public Duration getAckTimeout() { return ackTimeout; }
+    public void setAckTimeout(Duration ackTimeout) { this.ackTimeout = ackTimeout; }
+    public int getMaxRetries() { return maxRetries; }
+    public void setMaxRetries(int maxRetries) { this.maxRetries = maxRetries; }
+}
@@ -0,0 +1,17 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties("debug")
+public class DebugConfiguration {
+    // upstream frames of a type psbridge has no decoder for are published raw under <unknown-topic>/<sn>/<cmd_func>/<cmd_id>, off when empty
+    String unknownTopic;
+    // at most one sample per cmd_func/cmd_id this often
+    Duration unknownSampleInterval = Duration.ofMinutes(1);
+    public String getUnknownTopic() { return unknownTopic; }
+    public void setUnknownTopic(String unknownTopic) { this.unknownTopic = unknownTopic; }
+    public Duration getUnknownSampleInterval() { return unknownSampleInterval; }
+    public void setUnknownSampleInterval(Duration unknownSampleInterval) { this.unknownSampleInterval = unknownSampleInterval; }
+}
@@ -7,7 +7,7 @@ import java.util.List;
 @ConfigurationProperties("devices")
 public class DevicesConfiguration {
     private List<String> powerstreams;
-    private List<String> batteries;
+    private List<String> batteries = List.of();
 
     public List<String> getPowerstreams() {
         return powerstreams;
@@ -0,0 +1,23 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties("history")
+public class HistoryConfiguration {
+    boolean enabled;
+    String directory = "history";
+    // records kept per device, one day at one heartbeat per second
+    int capacity = 86_400;
+    // how often the ring files are written to disk, on top of shutdown, what the OS didn't write yet is lost on a crash
+    Duration flushInterval = Duration.ofMinutes(1);
+    public boolean isEnabled() { return enabled; }
+    public void setEnabled(boolean enabled) { this.enabled = enabled; }
+    public String getDirectory() { return directory; }
+    public void setDirectory(String directory) { this.directory = directory; }
+    public int getCapacity() { return capacity; }
+    public void setCapacity(int capacity) { this.capacity = capacity; }
+    public Duration getFlushInterval() { return flushInterval; }
+    public void setFlushInterval(Duration flushInterval) { this.flushInterval = flushInterval; }
+}
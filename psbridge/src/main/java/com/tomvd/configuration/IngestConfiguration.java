@@ -0,0 +1,11 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+@ConfigurationProperties("ingest")
+public class IngestConfiguration {
+    // raw messages waiting per device, when full the oldest one is dropped
+    int queueCapacity = 16;
+    public int getQueueCapacity() { return queueCapacity; }
+    public void setQueueCapacity(int queueCapacity) { this.queueCapacity = queueCapacity; }
+}
@@ -0,0 +1,17 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties("keepalive")
+public class KeepAliveConfiguration {
+    // every powerstream is looked at once per interval, the devices are spread evenly over it
+    Duration interval = Duration.ofSeconds(5);
+    // a powerstream that reported more recently than this is still in fast mode and gets no keepalive
+    Duration fastThreshold = Duration.ofSeconds(10);
+    public Duration getInterval() { return interval; }
+    public void setInterval(Duration interval) { this.interval = interval; }
+    public Duration getFastThreshold() { return fastThreshold; }
+    public void setFastThreshold(Duration fastThreshold) { this.fastThreshold = fastThreshold; }
+}
@@ -2,12 +2,18 @@ package com.tomvd.configuration;
 
 import io.micronaut.context.annotation.ConfigurationProperties;
 
+import java.time.Duration;
+
 @ConfigurationProperties("mqtt.client")
 public class MQTTConfiguration {
     private boolean enableDiscovery;
     private String serverUri;
     private String userName;
     private String password;
+    private boolean wildcardSubscriptions;
+    private int maxInflight = 100;
+    private Duration reconnectMinDelay = Duration.ofMillis(100);
+    private Duration reconnectMaxDelay = Duration.ofSeconds(5);
     public String getServerUri() { return serverUri; }
     public void setServerUri(String url) { this.serverUri = url; }
     public String getUserName() { return userName; }
@@ -16,4 +22,12 @@ public class MQTTConfiguration {
     public void setPassword(String password) { this.password = password; }
     public boolean isEnableDiscovery() { return enableDiscovery; }
     public void setEnableDiscovery(boolean enableDiscovery) { this.enableDiscovery = enableDiscovery; }
+    public boolean isWildcardSubscriptions() { return wildcardSubscriptions; }
+    public void setWildcardSubscriptions(boolean wildcardSubscriptions) { this.wildcardSubscriptions = wildcardSubscriptions; }
+    public int getMaxInflight() { return maxInflight; }
+    public void setMaxInflight(int maxInflight) { this.maxInflight = maxInflight; }
+    public Duration getReconnectMinDelay() { return reconnectMinDelay; }
+    public void setReconnectMinDelay(Duration reconnectMinDelay) { this.reconnectMinDelay = reconnectMinDelay; }
+    public Duration getReconnectMaxDelay() { return reconnectMaxDelay; }
+    public void setReconnectMaxDelay(Duration reconnectMaxDelay) { this.reconnectMaxDelay = reconnectMaxDelay; }
 }
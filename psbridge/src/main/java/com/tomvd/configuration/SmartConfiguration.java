@@ -2,6 +2,9 @@ package com.tomvd.configuration;
 
 import io.micronaut.context.annotation.ConfigurationProperties;
 
+import java.time.Duration;
+import java.util.Map;
+
 @ConfigurationProperties("smart")
 public class SmartConfiguration {
     boolean enabled;
@@ -10,6 +13,22 @@ public class SmartConfiguration {
     String chargerTopic;
     String socTopic;
     Integer maxPower;
+    boolean reactive;
+    Duration minInterval = Duration.ofSeconds(1);
+    Map<String, Integer> deviceMaxPower = Map.of();
+    Duration deviceTimeout = Duration.ofSeconds(30);
+    // proportional or pid
+    String mode = "proportional";
+    // pid mode: gains per watt of grid power error, ki per second and kd in seconds
+    double kp = 0.6;
+    double ki = 0.15;
+    double kd = 0;
+    // pid mode: time constant of the EWMA on the meter reading, 0 turns the filter off
+    Duration meterFilter = Duration.ofSeconds(5);
+    // pid mode: max change of the total setpoint in watts per second
+    int slewRate = 100;
+    // grid power the controller steers to, a small positive value keeps it from exporting battery power
+    int gridTarget = 0;
     public boolean isEnabled() { return enabled; }
     public void setEnabled(boolean enabled) { this.enabled = enabled; }
     public String getMeterTopic() { return meterTopic; }
@@ -22,4 +41,26 @@ public class SmartConfiguration {
     public void setSocTopic(String socTopic) { this.socTopic = socTopic; }
     public Integer getMaxPower() { return maxPower; }
     public void setMaxPower(Integer maxPower) { this.maxPower = maxPower; }
+    public boolean isReactive() { return reactive; }
+    public void setReactive(boolean reactive) { this.reactive = reactive; }
+    public Duration getMinInterval() { return minInterval; }
+    public void setMinInterval(Duration minInterval) { this.minInterval = minInterval; }
+    public Map<String, Integer> getDeviceMaxPower() { return deviceMaxPower; }
+    public void setDeviceMaxPower(Map<String, Integer> deviceMaxPower) { this.deviceMaxPower = deviceMaxPower; }
+    public Duration getDeviceTimeout() { return deviceTimeout; }
+    public void setDeviceTimeout(Duration deviceTimeout) { this.deviceTimeout = deviceTimeout; }
+    public String getMode() { return mode; }
+    public void setMode(String mode) { this.mode = mode; }
+    public double getKp() { return kp; }
+    public void setKp(double kp) { this.kp = kp; }
+    public double getKi() { return ki; }
+    public void setKi(double ki) { this.ki = ki; }
+    public double getKd() { return kd; }
+    public void setKd(double kd) { this.kd = kd; }
+    public Duration getMeterFilter() { return meterFilter; }
+    public void setMeterFilter(Duration meterFilter) { this.meterFilter = meterFilter; }
+    public int getSlewRate() { return slewRate; }
+    public void setSlewRate(int slewRate) { this.slewRate = slewRate; }
+    public int getGridTarget() { return gridTarget; }
+    public void setGridTarget(int gridTarget) { this.gridTarget = gridTarget; }
 }
@@ -0,0 +1,31 @@
+package com.tomvd.configuration;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.List;
+
+// a state message only goes out when a field moved more than its deadband, or max-interval passed since the last one
+@ConfigurationProperties("state")
+public class StateConfiguration {
+    double wattDeadband = 1;
+    double voltDeadband = 0.1;
+    double ampereDeadband = 0.1;
+    double celsiusDeadband = 0.5;
+    Duration maxInterval = Duration.ofSeconds(60);
+    // InverterHeartbeat fields to export, by their JSON (camelCase) or proto name, or * for all of them
+    List<String> fields = List.of("invOutputWatts", "llcTemp", "permanentWatts", "pv1InputVolt", "pv1InputCur",
+            "pv2InputVolt", "pv2InputCur");
+    public double getWattDeadband() { return wattDeadband; }
+    public void setWattDeadband(double wattDeadband) { this.wattDeadband = wattDeadband; }
+    public double getVoltDeadband() { return voltDeadband; }
+    public void setVoltDeadband(double voltDeadband) { this.voltDeadband = voltDeadband; }
+    public double getAmpereDeadband() { return ampereDeadband; }
+    public void setAmpereDeadband(double ampereDeadband) { this.ampereDeadband = ampereDeadband; }
+    public double getCelsiusDeadband() { return celsiusDeadband; }
+    public void setCelsiusDeadband(double celsiusDeadband) { this.celsiusDeadband = celsiusDeadband; }
+    public Duration getMaxInterval() { return maxInterval; }
+    public void setMaxInterval(Duration maxInterval) { this.maxInterval = maxInterval; }
+    public List<String> getFields() { return fields; }
+    public void setFields(List<String> fields) { this.fields = fields; }
+}
@@ -0,0 +1,5 @@
+package com.tomvd.converter;
+
+// one exported bmsStatus param, values are published as they come in the post (mV, mA, mAh...)
+public record BmsField(String param, String jsonName, byte[] jsonPrefix, String unit, String deviceClass) {
+}
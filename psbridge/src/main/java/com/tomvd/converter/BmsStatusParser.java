@@ -0,0 +1,140 @@
+package com.tomvd.converter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.tomvd.configuration.BatteryConfiguration;
+import io.micronaut.context.exceptions.ConfigurationException;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+Pulls the battery.fields params out of a /sys/72/<sn>/thing/property/post message with a streaming parser, no tree.
+typeCode comes in the first handful of tokens, anything but a bmsStatus is dropped right there. Inside params
+everything that isn't asked for is skipped, and parsing stops as soon as all fields have been found.
+
+There is no schema for the post, units follow from the param names like in HeartbeatFieldTable: *Soc and soh in
+percent, vol and *Vol in mV, amp and *Amp in mA, *Temp in °C, *Cap in mAh, *Watts in W and remainTime in minutes.
+ */
+@Singleton
+public class BmsStatusParser {
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String BMS_STATUS = "bmsStatus";
+    // the param the state message has always called soc
+    private static final String SHOW_SOC = "f32ShowSoc";
+    private final BmsField[] fields;
+    private final Map<String, Integer> index = new HashMap<>();
+    private final long complete;
+
+    @Inject
+    public BmsStatusParser(BatteryConfiguration config) {
+        // found fields are tracked as bits of a long
+        if (config.getFields().size() > Long.SIZE) {
+            throw new ConfigurationException("battery.fields: at most " + Long.SIZE + " fields");
+        }
+        this.fields = new BmsField[config.getFields().size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = resolve(config.getFields().get(i));
+            index.put(fields[i].param(), i);
+        }
+        this.complete = fields.length == Long.SIZE ? -1L : (1L << fields.length) - 1;
+    }
+
+    public BmsField[] fields() {
+        return fields;
+    }
+
+    /*
+    Adds the fields found in a bmsStatus post to a started writer, fields missing from the post are left out.
+    Returns false, without touching the writer, when the payload is not a bmsStatus message.
+     */
+    public boolean read(byte[] payload, JsonStateWriter writer) throws IOException {
+        long[] values = new long[fields.length];
+        long found = 0;
+        // fields whose value came as a floating point number, stored as raw double bits
+        long floats = 0;
+        boolean bmsStatus = false;
+        try (JsonParser parser = JSON.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) return false;
+            outer:
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (name.equals("typeCode")) {
+                    if (token != JsonToken.VALUE_STRING || !BMS_STATUS.equals(parser.getText())) return false;
+                    bmsStatus = true;
+                    if (found == complete) break;
+                } else if (name.equals("params") && token == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        Integer i = index.get(parser.currentName());
+                        JsonToken value = parser.nextToken();
+                        if (i == null) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        if (value == JsonToken.VALUE_NUMBER_INT) {
+                            values[i] = parser.getLongValue();
+                            found |= 1L << i;
+                        } else if (value == JsonToken.VALUE_NUMBER_FLOAT) {
+                            values[i] = Double.doubleToRawLongBits(parser.getDoubleValue());
+                            found |= 1L << i;
+                            floats |= 1L << i;
+                        } else {
+                            parser.skipChildren();
+                        }
+                        // without typeCode yet the rest of params still has to be walked to get back to the top level
+                        if (bmsStatus && found == complete) break outer;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (!bmsStatus) return false;
+        for (int i = 0; i < fields.length; i++) {
+            if ((found & (1L << i)) == 0) continue;
+            if ((floats & (1L << i)) != 0) {
+                writer.field(fields[i].jsonPrefix(), Double.longBitsToDouble(values[i]));
+            } else {
+                writer.field(fields[i].jsonPrefix(), values[i]);
+            }
+        }
+        return true;
+    }
+
+    private static BmsField resolve(String param) {
+        String jsonName = param.equals(SHOW_SOC) ? "soc" : param;
+        String name = param.toLowerCase(Locale.ROOT);
+        String unit = null;
+        String deviceClass = null;
+        if (name.endsWith("soc")) {
+            unit = "%";
+            deviceClass = "battery";
+        } else if (name.endsWith("soh")) {
+            unit = "%";
+        } else if (name.endsWith("vol")) {
+            unit = "mV";
+            deviceClass = "voltage";
+        } else if (name.endsWith("amp")) {
+            unit = "mA";
+            deviceClass = "current";
+        } else if (name.endsWith("temp")) {
+            unit = "°C";
+            deviceClass = "temperature";
+        } else if (name.endsWith("cap")) {
+            unit = "mAh";
+        } else if (name.endsWith("watts")) {
+            unit = "W";
+            deviceClass = "power";
+        } else if (name.equals("remaintime")) {
+            unit = "min";
+            deviceClass = "duration";
+        }
+        return new BmsField(param, jsonName, JsonStateWriter.name(jsonName), unit, deviceClass);
+    }
+}
@@ -0,0 +1,70 @@
+package com.tomvd.converter;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import com.tomvd.psbridge.setHeader;
+
+/*
+Pre-encoded setMessage for one powerstream. Everything but the power value, data_len and seq is the same for every
+command to a device, so those parts are encoded once with the builder and a command is the two constant runs with
+the varying fields written between them, straight into one exact-size array:
+
+setMessage.header {pdata {value} | src..cmd_id | data_len | need_ack | seq | version..device_sn}
+
+Fields come out in field number order with zeros left out, the same bytes setMessage.toByteArray() gives.
+ */
+final class CommandTemplate {
+    private static final int HEADER_TAG = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int PDATA_TAG = (setHeader.PDATA_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int VALUE_TAG = (1 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int DATA_LEN_TAG = (setHeader.DATA_LEN_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int NEED_ACK_TAG = (setHeader.NEED_ACK_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int SEQ_TAG = (setHeader.SEQ_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+    // src, dest, d_src, d_dest, check_type, cmd_func, cmd_id
+    private static final byte[] ROUTING = setHeader.newBuilder()
+            .setSrc(32)
+            .setDest(53)
+            .setDSrc(1)
+            .setDDest(1)
+            .setCheckType(3)
+            .setCmdFunc(20)
+            .setCmdId(129)
+            .build().toByteArray();
+    // version, payload_ver, from, device_sn
+    private final byte[] trailer;
+
+    CommandTemplate(String sn) {
+        this.trailer = setHeader.newBuilder()
+                .setVersion(19)
+                .setPayloadVer(1)
+                .setFrom("ios")
+                .setDeviceSn(sn)
+                .build().toByteArray();
+    }
+
+    // deciWatts and seq have to be positive, the builder would leave out a 0 and sign extend a negative value
+    byte[] encode(int deciWatts, int seq) {
+        int pdataLength = 1 + CodedOutputStream.computeUInt32SizeNoTag(deciWatts);
+        int headerLength = 2 + pdataLength + ROUTING.length + 2 + 2
+                + 1 + CodedOutputStream.computeUInt32SizeNoTag(seq) + trailer.length;
+        byte[] frame = new byte[1 + CodedOutputStream.computeUInt32SizeNoTag(headerLength) + headerLength];
+
+        int pos = 0;
+        frame[pos++] = (byte) HEADER_TAG;
+        pos = ProtobufConverter.putVarint(frame, pos, headerLength);
+        frame[pos++] = (byte) PDATA_TAG;
+        frame[pos++] = (byte) pdataLength;
+        frame[pos++] = (byte) VALUE_TAG;
+        pos = ProtobufConverter.putVarint(frame, pos, deciWatts);
+        System.arraycopy(ROUTING, 0, frame, pos, ROUTING.length);
+        pos += ROUTING.length;
+        frame[pos++] = (byte) DATA_LEN_TAG;
+        frame[pos++] = (byte) (deciWatts > 127 ? 3 : 2);
+        frame[pos++] = (byte) NEED_ACK_TAG;
+        frame[pos++] = 1;
+        frame[pos++] = (byte) SEQ_TAG;
+        pos = ProtobufConverter.putVarint(frame, pos, seq);
+        System.arraycopy(trailer, 0, frame, pos, trailer.length);
+        return frame;
+    }
+}
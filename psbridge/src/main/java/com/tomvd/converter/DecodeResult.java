@@ -0,0 +1,17 @@
+package com.tomvd.converter;
+
+/**
+ * Outcome of decoding an upstream frame. A frame either had at least one header that went to its registered handler,
+ * carries nothing we have a decoder for, or could not be parsed at all (or only has headers that failed to decode) -
+ * callers never have to guess from a null.
+ */
+public sealed interface DecodeResult {
+    Handled HANDLED = new Handled();
+    Ignored IGNORED = new Ignored();
+
+    record Handled() implements DecodeResult {}
+
+    record Ignored() implements DecodeResult {}
+
+    record Malformed(String reason) implements DecodeResult {}
+}
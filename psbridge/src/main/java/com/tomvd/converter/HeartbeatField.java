@@ -0,0 +1,39 @@
+package com.tomvd.converter;
+
+// one exported InverterHeartbeat field, resolved from the descriptor by HeartbeatFieldTable
+public record HeartbeatField(int number, String name, String jsonName, byte[] jsonPrefix, Unit unit, boolean tenths) {
+
+    public enum Unit {
+        WATT("W", "power"),
+        VOLT("V", "voltage"),
+        AMPERE("A", "current"),
+        CELSIUS("°C", "temperature"),
+        HERTZ("Hz", "frequency"),
+        PERCENT("%", null),
+        MINUTE("min", "duration"),
+        // codes, statuses and settings
+        NONE(null, null);
+
+        private final String symbol;
+        private final String deviceClass;
+
+        Unit(String symbol, String deviceClass) {
+            this.symbol = symbol;
+            this.deviceClass = deviceClass;
+        }
+
+        public String symbol() {
+            return symbol;
+        }
+
+        // Home Assistant device_class, null when there is none that fits
+        public String deviceClass() {
+            return deviceClass;
+        }
+    }
+
+    // raw value out of a decoded heartbeat, in tenths when tenths() is set
+    public int get(int[] heartbeat) {
+        return heartbeat[number];
+    }
+}
@@ -0,0 +1,75 @@
+package com.tomvd.converter;
+
+import com.google.protobuf.Descriptors;
+import com.tomvd.configuration.StateConfiguration;
+import com.tomvd.psbridge.InverterHeartbeat;
+import io.micronaut.context.exceptions.ConfigurationException;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+The InverterHeartbeat fields selected in state.fields, resolved against the protobuf descriptor once at startup.
+Everything per message (state JSON, deadbands, history, discovery) walks this flat table and reads the decoded
+heartbeat by field number, so there is no descriptor or reflection work per message and the cost only depends on
+how many fields are exported.
+
+ecoflow.proto carries no units, they follow from the field names: *_watts, *_volt, *_cur, *_temp and *_freq are
+reported in tenths, bat_soc and the limits in percent, *_remain in minutes and everything else is a plain code.
+ */
+@Singleton
+public class HeartbeatFieldTable {
+    public static final String ALL = "*";
+    // size of a decoded heartbeat, indexed by field number
+    public static final int SLOTS = InverterHeartbeat.getDescriptor().getFields().stream()
+            .mapToInt(Descriptors.FieldDescriptor::getNumber).max().orElse(0) + 1;
+    private final HeartbeatField[] fields;
+
+    @Inject
+    public HeartbeatFieldTable(StateConfiguration config) {
+        List<Descriptors.FieldDescriptor> descriptors = InverterHeartbeat.getDescriptor().getFields();
+        List<HeartbeatField> selected = new ArrayList<>();
+        if (config.getFields().contains(ALL)) {
+            descriptors.forEach(descriptor -> selected.add(resolve(descriptor)));
+        } else {
+            for (String name : config.getFields()) {
+                // camelCase as in the state JSON, or the proto name
+                Descriptors.FieldDescriptor descriptor = descriptors.stream()
+                        .filter(d -> d.getJsonName().equals(name) || d.getName().equals(name))
+                        .findFirst()
+                        .orElseThrow(() -> new ConfigurationException("state.fields: InverterHeartbeat has no field " + name));
+                selected.add(resolve(descriptor));
+            }
+        }
+        this.fields = selected.toArray(new HeartbeatField[0]);
+    }
+
+    public HeartbeatField[] fields() {
+        return fields;
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    private static HeartbeatField resolve(Descriptors.FieldDescriptor descriptor) {
+        String name = descriptor.getName();
+        HeartbeatField.Unit unit;
+        boolean tenths = true;
+        if (name.endsWith("_watts") || name.equals("rated_power")) unit = HeartbeatField.Unit.WATT;
+        else if (name.endsWith("_volt")) unit = HeartbeatField.Unit.VOLT;
+        else if (name.endsWith("_cur")) unit = HeartbeatField.Unit.AMPERE;
+        else if (name.endsWith("_temp")) unit = HeartbeatField.Unit.CELSIUS;
+        else if (name.endsWith("_freq")) unit = HeartbeatField.Unit.HERTZ;
+        else {
+            tenths = false;
+            if (name.equals("bat_soc") || name.endsWith("_limit")) unit = HeartbeatField.Unit.PERCENT;
+            else if (name.endsWith("_remain")) unit = HeartbeatField.Unit.MINUTE;
+            else unit = HeartbeatField.Unit.NONE;
+        }
+        return new HeartbeatField(descriptor.getNumber(), name, descriptor.getJsonName(),
+                JsonStateWriter.name(descriptor.getJsonName()), unit, tenths);
+    }
+}
@@ -0,0 +1,109 @@
+package com.tomvd.converter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+Writes flat JSON state objects straight into a reusable byte buffer, no tree and no intermediate String.
+Field names are passed in as precomputed prefixes (see name()), values are written digit by digit.
+Not thread safe - keep one instance per thread that publishes state.
+ */
+public final class JsonStateWriter {
+    private byte[] buf = new byte[256];
+    private int len;
+    private boolean first;
+
+    // precomputes the "fieldName": prefix
+    public static byte[] name(String fieldName) {
+        return ("\"" + fieldName + "\":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public JsonStateWriter begin() {
+        len = 0;
+        first = true;
+        put((byte) '{');
+        return this;
+    }
+
+    // value given in tenths, written as a decimal with one digit - the same text Jackson produces for value/10.0
+    public JsonStateWriter fieldTenths(byte[] name, int tenths) {
+        prefix(name);
+        long abs = tenths;
+        if (abs < 0) {
+            put((byte) '-');
+            abs = -abs;
+        }
+        digits(abs / 10);
+        put((byte) '.');
+        put((byte) ('0' + abs % 10));
+        return this;
+    }
+
+    public JsonStateWriter field(byte[] name, long value) {
+        prefix(name);
+        if (value < 0) {
+            put((byte) '-');
+            // Long.MIN_VALUE has no positive counterpart, never seen in practice
+            value = -value;
+        }
+        digits(value);
+        return this;
+    }
+
+    public JsonStateWriter field(byte[] name, double value) {
+        prefix(name);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            ascii("null");
+        } else {
+            ascii(Double.toString(value));
+        }
+        return this;
+    }
+
+    // returns an exact-size copy: Paho keeps a reference to the payload until a QoS 1 publish is acknowledged
+    public byte[] end() {
+        put((byte) '}');
+        return Arrays.copyOf(buf, len);
+    }
+
+    private void prefix(byte[] name) {
+        if (!first) put((byte) ',');
+        first = false;
+        ensure(name.length);
+        System.arraycopy(name, 0, buf, len, name.length);
+        len += name.length;
+    }
+
+    private void digits(long value) {
+        ensure(20);
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // written least significant first, flip them around
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+    }
+
+    private void ascii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buf[len++] = b;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+}
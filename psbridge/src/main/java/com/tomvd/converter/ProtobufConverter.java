@@ -1,63 +1,185 @@
 package com.tomvd.converter;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.tomvd.psbridge.Ecoflow;
+import com.tomvd.psbridge.EventInfoReportAck;
+import com.tomvd.psbridge.EventRecordItem;
+import com.tomvd.psbridge.EventRecordReport;
+import com.tomvd.psbridge.Header;
 import com.tomvd.psbridge.HeaderMessage;
 import com.tomvd.psbridge.InverterHeartbeat;
+import com.tomvd.psbridge.ProductNameGet;
+import com.tomvd.psbridge.ProductNameGetAck;
+import com.tomvd.psbridge.ProductNameSet;
+import com.tomvd.psbridge.ProductNameSetAck;
+import com.tomvd.psbridge.RTCTimeGet;
+import com.tomvd.psbridge.RTCTimeGetAck;
+import com.tomvd.psbridge.RTCTimeSet;
+import com.tomvd.psbridge.RTCTimeSetAck;
 import com.tomvd.psbridge.SendMsgHart;
+import com.tomvd.psbridge.Send_Header_Msg;
+import com.tomvd.psbridge.setHeader;
 import com.tomvd.psbridge.setMessage;
+import com.tomvd.psbridge.setValue;
+import io.micronaut.core.annotation.TypeHint;
 import jakarta.inject.Singleton;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+protobuf-java finds the accessors of generated messages by reflection (toString, equals, getField...), register them
+so a native image behaves the same as the JVM.
+ */
+@TypeHint(value = {
+        Ecoflow.class,
+        Header.class, Header.Builder.class,
+        HeaderMessage.class, HeaderMessage.Builder.class,
+        InverterHeartbeat.class, InverterHeartbeat.Builder.class,
+        EventRecordItem.class, EventRecordItem.Builder.class,
+        EventRecordReport.class, EventRecordReport.Builder.class,
+        EventInfoReportAck.class, EventInfoReportAck.Builder.class,
+        ProductNameSet.class, ProductNameSet.Builder.class,
+        ProductNameSetAck.class, ProductNameSetAck.Builder.class,
+        ProductNameGet.class, ProductNameGet.Builder.class,
+        ProductNameGetAck.class, ProductNameGetAck.Builder.class,
+        RTCTimeGet.class, RTCTimeGet.Builder.class,
+        RTCTimeGetAck.class, RTCTimeGetAck.Builder.class,
+        RTCTimeSet.class, RTCTimeSet.Builder.class,
+        RTCTimeSetAck.class, RTCTimeSetAck.Builder.class,
+        Send_Header_Msg.class, Send_Header_Msg.Builder.class,
+        SendMsgHart.class, SendMsgHart.Builder.class,
+        setMessage.class, setMessage.Builder.class,
+        setHeader.class, setHeader.Builder.class,
+        setValue.class, setValue.Builder.class
+}, accessType = TypeHint.AccessType.ALL_PUBLIC_METHODS)
 @Singleton
 public class ProtobufConverter  {
     private static final Logger LOG = LoggerFactory.getLogger(ProtobufConverter.class);
+    // serial number -> pre-encoded setMessage for that powerstream
+    private final Map<String, CommandTemplate> templates = new ConcurrentHashMap<>();
+
+    // HeaderMessage.header = 1, and the Header fields we look at, as (field_number << 3) | wire_type
+    private static final int HEADER_TAG = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int PDATA_TAG = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int CMD_FUNC_TAG = (8 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int CMD_ID_TAG = (9 << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int SEQ_TAG = (14 << 3) | WireFormat.WIRETYPE_VARINT;
+
+    private static final int KEEPALIVE_SEQ_TAG = (SendMsgHart.SEQ_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final byte[] KEEPALIVE_PREFIX = keepAliveBuilder().build().toByteArray();
 
-    public InverterHeartbeat convert(byte[] data) {
-        //LOG.info("Transforming binary data of size: {}", data.length);
-        HeaderMessage msgobj = null;
+    public static final int HEARTBEAT_CMD_FUNC = 20;
+    public static final int HEARTBEAT_CMD_ID = 1;
+    // setMessage, the power setting, the device acknowledges it with a header of the same type
+    public static final int SET_POWER_CMD_FUNC = 20;
+    public static final int SET_POWER_CMD_ID = 129;
+    // platform messages, SendMsgHart is the keepalive we send. The other ids come from community reverse engineering
+    // of the app and are not confirmed on a device, debug.unknown-topic shows what actually arrives. The answer to a
+    // get or set comes back with the ids of the request, like the power setting's
+    public static final int PLATFORM_CMD_FUNC = 32;
+    public static final int EVENT_RECORD_REPORT_CMD_ID = 1;
+    public static final int PRODUCT_NAME_SET_CMD_ID = 5;
+    public static final int PRODUCT_NAME_GET_CMD_ID = 6;
+    public static final int KEEPALIVE_CMD_ID = 10;
+    public static final int RTC_TIME_GET_CMD_ID = 11;
+    public static final int RTC_TIME_SET_CMD_ID = 12;
+
+    /*
+    Walks the HeaderMessage on the wire instead of materialising it and hands every header to the decoder registered
+    for its cmd_func/cmd_id. The pdata is passed as a slice of the original array, a header nothing is registered for
+    is skipped without copying it. A header that fails to decode doesn't stop the ones after it; the frame only counts
+    as malformed when none of its headers was handled.
+     */
+    public DecodeResult convert(byte[] data, int device, UpstreamRegistry registry) {
         try {
-                msgobj = HeaderMessage.parseFrom(data);
-                } catch (InvalidProtocolBufferException e) {
-            LOG.error(e.getMessage());
+            CodedInputStream in = CodedInputStream.newInstance(data);
+            DecodeResult result = DecodeResult.IGNORED;
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                if (tag != HEADER_TAG) {
+                    in.skipField(tag);
+                    continue;
+                }
+                int oldLimit = in.pushLimit(in.readRawVarint32());
+                DecodeResult header = readHeader(in, data, device, registry);
+                // handled beats failed beats ignored
+                if (result != DecodeResult.HANDLED && header != DecodeResult.IGNORED) result = header;
+                in.popLimit(oldLimit);
+            }
+            return result;
+        } catch (IOException e) {
+            return new DecodeResult.Malformed(e.getMessage());
         }
+    }
 
-        assert msgobj != null;
-        return msgobj.getHeaderList().stream()
-                .filter(header -> header.getCmdId() == 1)
-                .map(header -> {
-                    try {
-                        return InverterHeartbeat.parseFrom(header.getPdata());
-                    } catch (InvalidProtocolBufferException e) {
-                        throw new RuntimeException(e);
-                    }
-                }).findFirst().orElse(null);
+    private DecodeResult readHeader(CodedInputStream in, byte[] data, int device, UpstreamRegistry registry) throws IOException {
+        int pdataOffset = 0;
+        int pdataLength = 0;
+        int cmdFunc = 0;
+        int cmdId = 0;
+        int seq = 0;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (tag) {
+                case PDATA_TAG -> {
+                    pdataLength = in.readRawVarint32();
+                    pdataOffset = in.getTotalBytesRead();
+                    in.skipRawBytes(pdataLength);
+                }
+                case CMD_FUNC_TAG -> cmdFunc = in.readInt32();
+                case CMD_ID_TAG -> cmdId = in.readInt32();
+                case SEQ_TAG -> seq = in.readInt32();
+                default -> in.skipField(tag);
+            }
+        }
+        UpstreamRegistry.Entry<?> entry = registry.lookup(cmdFunc, cmdId);
+        if (entry == null) {
+            registry.unknown(device, cmdFunc, cmdId, data);
+            return DecodeResult.IGNORED;
+        }
+        try {
+            entry.dispatch(device, seq, data, pdataOffset, pdataLength);
+            return DecodeResult.HANDLED;
+        } catch (IOException e) {
+            entry.failed().increment();
+            LOG.debug("Could not parse {} from device {}: {}", entry.name(), device, e.getMessage());
+            return new DecodeResult.Malformed(entry.name() + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            entry.failed().increment();
+            LOG.error("Error handling {} from device {}", entry.name(), device, e);
+            return new DecodeResult.Malformed(entry.name() + ": " + e);
+        }
     }
 
-    public byte[] getPowerSettingPayload(int watts, String sn) {
+    // every InverterHeartbeat field is an int32 or uint32 varint, both come out of readInt32 as the generated getter would
+    public static int[] readHeartbeat(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) throw new InvalidProtocolBufferException("heartbeat header without pdata");
+        int[] heartbeat = new int[HeartbeatFieldTable.SLOTS];
+        CodedInputStream in = CodedInputStream.newInstance(data, offset, length);
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            int number = WireFormat.getTagFieldNumber(tag);
+            if (number < heartbeat.length && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                heartbeat[number] = in.readInt32();
+            } else {
+                in.skipField(tag);
+            }
+        }
+        return heartbeat;
+    }
+
+    // seq has to be positive, see CommandTracker.nextSeq
+    public byte[] getPowerSettingPayload(int watts, String sn, int seq) {
         int deciWatts = Math.max(1, watts*10);
-        setMessage setMessage = com.tomvd.psbridge.setMessage.newBuilder()
-                .setHeader(com.tomvd.psbridge.setHeader.newBuilder()
-                        .setPdata(com.tomvd.psbridge.setValue.newBuilder()
-                                .setValue(deciWatts)
-                                .build())
-                        .setSrc(32)
-                        .setDest(53)
-                        .setDSrc(1)
-                        .setDDest(1)
-                        .setCheckType(3)
-                        .setCmdFunc(20)
-                        .setCmdId(129)
-                        .setDataLen(deciWatts > 127?3:2)
-                        .setNeedAck(1)
-                        .setSeq((int)(System.currentTimeMillis()/1000))
-                        .setVersion(19)
-                        .setPayloadVer(1)
-                        .setFrom("ios")
-                        .setDeviceSn(sn)
-                        .build())
-                .build();
-        return setMessage.toByteArray();
+        return templates.computeIfAbsent(sn, CommandTemplate::new).encode(deciWatts, seq);
     }
 
     /*
@@ -85,8 +207,35 @@ public class ProtobufConverter  {
     not sure what this message is to be honest. It is sent by the ecoflow mqtt server the moment a device connects to it.
     And it seems to keep the device chatting. Otherwise it falls back to a very slow rate of 48seconds status updates
      */
-    public byte[] convertHeartBeat() {
-        SendMsgHart sendMsgHart = com.tomvd.psbridge.SendMsgHart.newBuilder()
+    public byte[] convertHeartBeat(int seq) {
+        return keepAlive(seq);
+    }
+
+    /*
+    Every SendMsgHart field but seq is constant and seq (14) is the last one that isn't 0, so the frame is the
+    pre-encoded prefix with the seq tag and varint appended - byte for byte what the builder writes.
+     */
+    static byte[] keepAlive(int seq) {
+        int seqSize = CodedOutputStream.computeUInt32SizeNoTag(seq);
+        byte[] frame = Arrays.copyOf(KEEPALIVE_PREFIX, KEEPALIVE_PREFIX.length + 1 + seqSize);
+        frame[KEEPALIVE_PREFIX.length] = (byte) KEEPALIVE_SEQ_TAG;
+        // seq is positive, the builder would sign extend a negative one to 10 bytes
+        putVarint(frame, KEEPALIVE_PREFIX.length + 1, seq);
+        return frame;
+    }
+
+    // writes value as an unsigned varint, returns the position after it
+    static int putVarint(byte[] buf, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static SendMsgHart.Builder keepAliveBuilder() {
+        return com.tomvd.psbridge.SendMsgHart.newBuilder()
                 .setLinkId(15)
                 .setSrc(32)
                 .setDest(53)
@@ -94,14 +243,11 @@ public class ProtobufConverter  {
                 .setDDest(1)
                 .setEncType(0)
                 .setCheckType(0)
-                .setCmdFunc(32)
-                .setCmdId(10)
+                .setCmdFunc(PLATFORM_CMD_FUNC)
+                .setCmdId(KEEPALIVE_CMD_ID)
                 .setDataLen(2)
                 .setNeedAck(1)
                 .setIsAck(0)
-                .setAckType(0)
-                .setSeq((int)(System.currentTimeMillis()/1000))
-                .build();
-        return sendMsgHart.toByteArray();
+                .setAckType(0);
     }
 }
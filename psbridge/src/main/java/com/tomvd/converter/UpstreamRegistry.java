@@ -0,0 +1,96 @@
+package com.tomvd.converter;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+
+/*
+Decoders for upstream frames, by the (cmd_func, cmd_id) of the header. Each entry pairs the parser for the pdata with
+the handler for what it parses, they are all registered at startup. Both ids fit in a byte on the wire, so they pack
+into one index of a 65536 entry table and finding the decoder for a header is a single array lookup, however many
+message types are registered. Headers of any other type are counted and passed to the unknown handler.
+A header whose pdata doesn't parse, or whose handler throws, is counted against its type.
+ */
+public final class UpstreamRegistry {
+    private final Entry<?>[] entries = new Entry<?>[1 << 16];
+    private final UnknownHandler unknownHandler;
+    private final LongAdder unknown = new LongAdder();
+
+    @FunctionalInterface
+    public interface Parser<T> {
+        // the pdata of the header, length 0 when the header has none
+        T parse(byte[] data, int offset, int length) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Handler<T> {
+        void handle(int device, int seq, T message);
+    }
+
+    @FunctionalInterface
+    public interface UnknownHandler {
+        void unknown(int device, int cmdFunc, int cmdId, byte[] frame);
+    }
+
+    // for the types where only the header matters, acks mostly
+    public static final Parser<Void> NO_PDATA = (data, offset, length) -> null;
+
+    public UpstreamRegistry(UnknownHandler unknownHandler) {
+        this.unknownHandler = unknownHandler;
+    }
+
+    public static int key(int cmdFunc, int cmdId) {
+        return cmdFunc << 8 | cmdId;
+    }
+
+    public <T> UpstreamRegistry register(int cmdFunc, int cmdId, String name, Parser<T> parser, Handler<T> handler) {
+        if (!inRange(cmdFunc) || !inRange(cmdId)) {
+            throw new IllegalArgumentException(name + ": cmd_func and cmd_id go from 0 to 255");
+        }
+        int key = key(cmdFunc, cmdId);
+        if (entries[key] != null) {
+            throw new IllegalStateException(name + ": " + cmdFunc + "/" + cmdId + " is already taken by " + entries[key].name());
+        }
+        entries[key] = new Entry<>(name, parser, handler, new LongAdder());
+        return this;
+    }
+
+    // null for a type nothing is registered for
+    Entry<?> lookup(int cmdFunc, int cmdId) {
+        if (!inRange(cmdFunc) || !inRange(cmdId)) return null;
+        return entries[key(cmdFunc, cmdId)];
+    }
+
+    void unknown(int device, int cmdFunc, int cmdId, byte[] frame) {
+        unknown.increment();
+        unknownHandler.unknown(device, cmdFunc, cmdId, frame);
+    }
+
+    public long getUnknown() {
+        return unknown.sum();
+    }
+
+    // failed headers of the type with this key, 0 when nothing is registered for it
+    public long getFailed(int key) {
+        Entry<?> entry = entries[key];
+        return entry == null ? 0 : entry.failed().sum();
+    }
+
+    // the name and key of every registered type
+    public void forEachType(ObjIntConsumer<String> action) {
+        for (int key = 0; key < entries.length; key++) {
+            if (entries[key] != null) action.accept(entries[key].name(), key);
+        }
+    }
+
+    private static boolean inRange(int id) {
+        return (id & ~0xFF) == 0;
+    }
+
+    record Entry<T>(String name, Parser<T> parser, Handler<T> handler, LongAdder failed) {
+        void dispatch(int device, int seq, byte[] data, int offset, int length) throws IOException {
+            T message = parser.parse(data, offset, length);
+            handler.handle(device, seq, message);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.tomvd.history;
+
+import com.tomvd.services.DeviceStateStore;
+import io.micronaut.core.annotation.Nullable;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Get;
+import io.micronaut.http.annotation.QueryValue;
+import jakarta.inject.Inject;
+
+/*
+GET /history/{sn}?from=<epoch ms>&to=<epoch ms>&buckets=<n>
+Defaults to the last hour in 60 buckets.
+ */
+@Controller("/history")
+public class HistoryController {
+    private static final long DEFAULT_RANGE_MILLIS = 3_600_000;
+    private static final int MAX_BUCKETS = 1000;
+    private final TelemetryHistory history;
+    private final DeviceStateStore store;
+
+    @Inject
+    public HistoryController(TelemetryHistory history, DeviceStateStore store) {
+        this.history = history;
+        this.store = store;
+    }
+
+    @Get("/{deviceId}")
+    public HttpResponse<HistoryRange> range(String deviceId, @Nullable @QueryValue Long from, @Nullable @QueryValue Long to,
+                                            @Nullable @QueryValue Integer buckets) {
+        int device = store.indexOf(deviceId);
+        if (!history.isEnabled(device)) return HttpResponse.notFound();
+        long end = to == null ? System.currentTimeMillis() : to;
+        // nothing is recorded before the epoch, and it keeps end - start from overflowing
+        long start = Math.max(0, from == null ? end - DEFAULT_RANGE_MILLIS : from);
+        if (start >= end) return HttpResponse.badRequest();
+        int n = buckets == null ? 60 : Math.max(1, Math.min(MAX_BUCKETS, buckets));
+        return HttpResponse.ok(history.query(device, start, end, n));
+    }
+}
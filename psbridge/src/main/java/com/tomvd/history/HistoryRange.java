@@ -0,0 +1,17 @@
+package com.tomvd.history;
+
+import io.micronaut.serde.annotation.Serdeable;
+
+import java.util.List;
+import java.util.Map;
+
+@Serdeable
+public record HistoryRange(String deviceId, long from, long to, List<Bucket> buckets) {
+
+    // empty buckets are left out
+    @Serdeable
+    public record Bucket(long start, long end, int samples, Map<String, Stats> fields) {}
+
+    @Serdeable
+    public record Stats(double min, double max, double avg) {}
+}
@@ -0,0 +1,181 @@
+package com.tomvd.history;
+
+import com.tomvd.configuration.HistoryConfiguration;
+import com.tomvd.converter.HeartbeatField;
+import com.tomvd.converter.HeartbeatFieldTable;
+import com.tomvd.services.DeviceStateStore;
+import io.micronaut.context.exceptions.ConfigurationException;
+import io.micronaut.scheduling.annotation.Scheduled;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Per device history of the exported heartbeat fields (state.fields), kept in a memory-mapped ring file (history/<sn>.ring) so it
+survives restarts. Every record is a timestamp followed by the raw field values, appending is a handful of absolute
+puts into the mapping and allocates nothing. Each device is appended to from its own ingest lane only.
+
+Queries run on HTTP threads while the lane writes. The number of records written is published through a volatile
+after a record is complete, so a query only sees whole records. A record the writer may have overwritten while the
+query read it, which only happens to the oldest ones once the ring is full, is left out (a seqlock on the count).
+The oldest slot of a full ring is always the one the next append goes into, so a query sees at most capacity - 1 records.
+The mappings are forced to disk every history.flush-interval and on shutdown.
+
+File layout: a 64 byte header (magic, version, field count, capacity, field layout hash, records written) followed by
+capacity fixed-size records. A file whose header doesn't match the current layout is started over.
+ */
+@Singleton
+public class TelemetryHistory {
+    private static final Logger LOG = LoggerFactory.getLogger(TelemetryHistory.class);
+    private static final int MAGIC = 0x50534854; // PSHT
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int LAYOUT_OFFSET = 16;
+    private static final int COUNT_OFFSET = 24;
+    private final HeartbeatField[] fields;
+    private final int recordSize;
+    private final DeviceStateStore store;
+    private final int capacity;
+    private final MappedByteBuffer[] rings;
+    // records written per device, the same as the count in the file header
+    private final AtomicLongArray written;
+
+    @Inject
+    public TelemetryHistory(HistoryConfiguration config, DeviceStateStore store, HeartbeatFieldTable table) {
+        if (config.isEnabled() && config.getCapacity() < 1) {
+            throw new ConfigurationException("history.capacity: at least 1 record, got " + config.getCapacity());
+        }
+        this.store = store;
+        this.fields = table.fields();
+        this.recordSize = Long.BYTES + fields.length * Integer.BYTES;
+        this.capacity = Math.min(config.getCapacity(), (Integer.MAX_VALUE - HEADER_SIZE) / recordSize);
+        this.rings = new MappedByteBuffer[store.size()];
+        this.written = new AtomicLongArray(store.size());
+        if (!config.isEnabled()) return;
+        Path directory = Path.of(config.getDirectory());
+        for (int i = 0; i < rings.length; i++) {
+            Path file = directory.resolve(store.get(i).deviceId() + ".ring");
+            try {
+                Files.createDirectories(directory);
+                rings[i] = open(file);
+                written.set(i, rings[i].getLong(COUNT_OFFSET));
+            } catch (IOException e) {
+                LOG.error("Could not open history file {}, no history for this device", file, e);
+            }
+        }
+    }
+
+    public boolean isEnabled(int device) {
+        return device >= 0 && device < rings.length && rings[device] != null;
+    }
+
+    public void append(int device, long timestamp, int[] heartbeat) {
+        MappedByteBuffer ring = rings[device];
+        if (ring == null) return;
+        long count = written.get(device);
+        int position = HEADER_SIZE + (int) (count % capacity) * recordSize;
+        ring.putLong(position, timestamp);
+        position += Long.BYTES;
+        for (HeartbeatField field : fields) {
+            ring.putInt(position, field.get(heartbeat));
+            position += Integer.BYTES;
+        }
+        // publish the record only once it is complete
+        ring.putLong(COUNT_OFFSET, count + 1);
+        written.set(device, count + 1);
+    }
+
+    // min/max/avg per field over [from, to) in equal width buckets
+    public HistoryRange query(int device, long from, long to, int buckets) {
+        MappedByteBuffer ring = rings[device];
+        int n = fields.length;
+        double width = Math.max(1, to - from) / (double) buckets;
+        int[] samples = new int[buckets];
+        int[][] min = new int[buckets][n];
+        int[][] max = new int[buckets][n];
+        long[][] sum = new long[buckets][n];
+        int[] values = new int[n];
+
+        long count = written.get(device);
+        for (long i = Math.max(0, count - capacity); i < count; i++) {
+            int position = HEADER_SIZE + (int) (i % capacity) * recordSize;
+            long timestamp = ring.getLong(position);
+            if (timestamp < from || timestamp >= to) continue;
+            for (int f = 0; f < n; f++) {
+                values[f] = ring.getInt(position + Long.BYTES + f * Integer.BYTES);
+            }
+            // the reads above must not move past the check
+            VarHandle.acquireFence();
+            // record i + capacity goes into the same slot, the writer may be on it once the count reached it
+            if (written.get(device) - capacity >= i) continue;
+            int bucket = Math.min(buckets - 1, (int) ((timestamp - from) / width));
+            boolean first = samples[bucket]++ == 0;
+            for (int f = 0; f < n; f++) {
+                int value = values[f];
+                min[bucket][f] = first ? value : Math.min(min[bucket][f], value);
+                max[bucket][f] = first ? value : Math.max(max[bucket][f], value);
+                sum[bucket][f] += value;
+            }
+        }
+
+        List<HistoryRange.Bucket> result = new ArrayList<>();
+        for (int b = 0; b < buckets; b++) {
+            if (samples[b] == 0) continue;
+            Map<String, HistoryRange.Stats> stats = new LinkedHashMap<>();
+            for (int f = 0; f < n; f++) {
+                // stored raw, same as on the wire
+                double scale = fields[f].tenths() ? 10.0 : 1.0;
+                stats.put(fields[f].jsonName(), new HistoryRange.Stats(
+                        min[b][f] / scale, max[b][f] / scale, sum[b][f] / (samples[b] * scale)));
+            }
+            long start = from + (long) (b * width);
+            long end = b == buckets - 1 ? to : from + (long) ((b + 1) * width);
+            result.add(new HistoryRange.Bucket(start, end, samples[b], stats));
+        }
+        return new HistoryRange(store.get(device).deviceId(), from, to, result);
+    }
+
+    @Scheduled(fixedDelay = "${history.flush-interval:1m}")
+    void flush() {
+        for (MappedByteBuffer ring : rings) {
+            if (ring != null) ring.force();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flush();
+    }
+
+    private MappedByteBuffer open(Path file) throws IOException {
+        long size = HEADER_SIZE + (long) capacity * recordSize;
+        int layout = Arrays.hashCode(Arrays.stream(fields).map(HeartbeatField::name).toArray());
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer ring = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (ring.getInt(0) != MAGIC || ring.getInt(4) != VERSION || ring.getInt(8) != fields.length
+                    || ring.getInt(12) != capacity || ring.getInt(LAYOUT_OFFSET) != layout) {
+                LOG.info("Starting new history file {}", file);
+                ring.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, fields.length).putInt(12, capacity)
+                        .putInt(LAYOUT_OFFSET, layout).putLong(COUNT_OFFSET, 0);
+            }
+            return ring;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.tomvd.metrics;
+
+import com.tomvd.converter.UpstreamRegistry;
+import com.tomvd.mqtt.MqttLink;
+import com.tomvd.services.CommandTracker;
+import com.tomvd.services.IngestPipeline;
+import com.tomvd.services.SetpointCoalescer;
+import com.tomvd.services.StatePublishFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/*
+All psbridge meters, scraped from /prometheus. Counters and timers are looked up once when a topic or device is wired
+and then kept by the caller, so recording on the ingest path doesn't go through the registry.
+ */
+@Singleton
+public class BridgeMetrics {
+    private final MeterRegistry registry;
+    private final Timer decode;
+    private final Timer jsonBuild;
+    private final Timer evaluation;
+    private final Timer controlLatency;
+    private final Timer commandRoundTrip;
+    // System.nanoTime() of the last meter message that wasn't followed by a setpoint yet, 0 when there is none
+    private final AtomicLong pendingMeter = new AtomicLong();
+
+    @Inject
+    public BridgeMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.decode = timer("psbridge.decode", "ProtobufConverter.convert per upstream frame, handlers included");
+        this.jsonBuild = timer("psbridge.json.build", "building a state message");
+        this.evaluation = timer("psbridge.smart.evaluation", "one smart controller evaluation");
+        this.controlLatency = timer("psbridge.control.latency", "meter message arriving to the resulting power setting publish");
+        this.commandRoundTrip = timer("psbridge.command.rtt", "power setting publish to the device acknowledging it");
+    }
+
+    public Counter received(String topicClass, String device) {
+        return Counter.builder("psbridge.messages.received")
+                .tag("class", topicClass).tag("device", device).register(registry);
+    }
+
+    public Counter published(String topicClass, String device) {
+        return Counter.builder("psbridge.messages.published")
+                .tag("class", topicClass).tag("device", device).register(registry);
+    }
+
+    public Timer decode() {
+        return decode;
+    }
+
+    public Timer jsonBuild() {
+        return jsonBuild;
+    }
+
+    public Timer evaluation() {
+        return evaluation;
+    }
+
+    public Timer commandRoundTrip() {
+        return commandRoundTrip;
+    }
+
+    public void meterReceived() {
+        pendingMeter.set(System.nanoTime());
+    }
+
+    // the first power setting after a meter message closes the control loop
+    public void setpointSent() {
+        long meter = pendingMeter.getAndSet(0);
+        if (meter != 0) controlLatency.record(System.nanoTime() - meter, TimeUnit.NANOSECONDS);
+    }
+
+    // seconds since an input last changed, NaN until it was seen once
+    public void age(String input, LongSupplier lastUpdatedMillis) {
+        Gauge.builder("psbridge.input.age", lastUpdatedMillis, s -> {
+                    long updated = s.getAsLong();
+                    return updated == 0 ? Double.NaN : (System.currentTimeMillis() - updated) / 1000.0;
+                })
+                .tag("input", input).baseUnit("seconds").strongReference(true).register(registry);
+    }
+
+    public void link(MqttLink link, String name) {
+        Timer latency = Timer.builder("psbridge.mqtt.publish.latency").tag("link", name)
+                .description("publish until the broker acknowledged it").publishPercentileHistogram().register(registry);
+        link.setPublishLatencyListener(nanos -> latency.record(nanos, TimeUnit.NANOSECONDS));
+        Gauge.builder("psbridge.mqtt.inflight", link, MqttLink::getInflight).tag("link", name).register(registry);
+        Gauge.builder("psbridge.mqtt.connected", link, l -> l.isConnected() ? 1 : 0).tag("link", name).register(registry);
+        Gauge.builder("psbridge.mqtt.reconnect.duration", link, MqttLink::getLastReconnectMillis)
+                .tag("link", name).baseUnit("milliseconds").register(registry);
+        FunctionCounter.builder("psbridge.mqtt.publishes", link, MqttLink::getPublished)
+                .tag("link", name).tag("outcome", "published").register(registry);
+        FunctionCounter.builder("psbridge.mqtt.publishes", link, MqttLink::getFailed)
+                .tag("link", name).tag("outcome", "failed").register(registry);
+        FunctionCounter.builder("psbridge.mqtt.publishes", link, MqttLink::getOverflowed)
+                .tag("link", name).tag("outcome", "overflowed").register(registry);
+        FunctionCounter.builder("psbridge.mqtt.publishes", link, MqttLink::getLost)
+                .tag("link", name).tag("outcome", "lost").register(registry);
+        FunctionCounter.builder("psbridge.mqtt.reconnects", link, MqttLink::getReconnects).tag("link", name).register(registry);
+    }
+
+    public void lane(IngestPipeline.Lane lane) {
+        Gauge.builder("psbridge.ingest.depth", lane, IngestPipeline.Lane::getDepth).tag("lane", lane.getName()).register(registry);
+        FunctionCounter.builder("psbridge.ingest.dropped", lane, IngestPipeline.Lane::getDropped)
+                .tag("lane", lane.getName()).register(registry);
+    }
+
+    public void stateFilter(StatePublishFilter filter) {
+        FunctionCounter.builder("psbridge.state.heartbeats", filter, StatePublishFilter::getPublished)
+                .tag("outcome", "published").register(registry);
+        FunctionCounter.builder("psbridge.state.heartbeats", filter, StatePublishFilter::getSuppressed)
+                .tag("outcome", "suppressed").register(registry);
+    }
+
+    public void commands(SetpointCoalescer commands) {
+        FunctionCounter.builder("psbridge.setpoints.submitted", commands, SetpointCoalescer::getSubmitted).register(registry);
+        FunctionCounter.builder("psbridge.setpoints.sent", commands, SetpointCoalescer::getSent).register(registry);
+    }
+
+    public void commandAcks(CommandTracker tracker) {
+        FunctionCounter.builder("psbridge.command.acks", tracker, CommandTracker::getAcked).tag("result", "acked").register(registry);
+        FunctionCounter.builder("psbridge.command.acks", tracker, CommandTracker::getRetried).tag("result", "retried").register(registry);
+        FunctionCounter.builder("psbridge.command.acks", tracker, CommandTracker::getFailed).tag("result", "failed").register(registry);
+        FunctionCounter.builder("psbridge.command.acks", tracker, CommandTracker::getUnmatched).tag("result", "unmatched").register(registry);
+        Gauge.builder("psbridge.command.success.ratio", tracker, CommandTracker::getSuccessRatio)
+                .description("acknowledged power settings out of acknowledged plus failed")
+                .register(registry);
+    }
+
+    public void upstream(UpstreamRegistry upstream) {
+        FunctionCounter.builder("psbridge.upstream.unknown", upstream, UpstreamRegistry::getUnknown)
+                .description("upstream headers of a cmd_func/cmd_id without a decoder")
+                .register(registry);
+        upstream.forEachType((name, key) ->
+                FunctionCounter.builder("psbridge.upstream.failed", upstream, u -> u.getFailed(key))
+                        .description("upstream headers whose pdata didn't parse or whose handler failed")
+                        .tag("type", name)
+                        .register(registry));
+    }
+
+    public ControlLoopMetrics controlLoop(String mode, int target) {
+        return new ControlLoopMetrics(registry, mode, target);
+    }
+
+    private Timer timer(String name, String description) {
+        return Timer.builder(name).description(description).publishPercentileHistogram().register(registry);
+    }
+}
@@ -0,0 +1,70 @@
+package com.tomvd.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+How well the smart controller does its job, tagged with the control mode so two modes can be compared on the same
+installation: grid import/export energy, controller commands and settling time. A disturbance starts when the grid
+power leaves the band around the target and it is settled once it stayed inside for SETTLE_HOLD, the settling time
+runs up to the moment it came back in. Fed from the controller's evaluation, one thread at a time.
+ */
+public class ControlLoopMetrics {
+    private static final int SETTLE_BAND = 25;
+    private static final long SETTLE_HOLD_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // longer gaps than this are not integrated, the meter was probably gone
+    private static final long MAX_GAP_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private final int target;
+    private final Timer settling;
+    private final Counter imported;
+    private final Counter exported;
+    private final Counter commands;
+    private long lastSample;
+    private int lastGridPower;
+    private long disturbedAt;
+    private long inBandSince;
+
+    ControlLoopMetrics(MeterRegistry registry, String mode, int target) {
+        this.target = target;
+        this.settling = Timer.builder("psbridge.control.settling").tag("mode", mode)
+                .description("time for the grid power to settle back within 25W of the target").publishPercentileHistogram().register(registry);
+        this.imported = Counter.builder("psbridge.grid.energy").tag("mode", mode).tag("direction", "import")
+                .baseUnit("watt-hours").register(registry);
+        this.exported = Counter.builder("psbridge.grid.energy").tag("mode", mode).tag("direction", "export")
+                .baseUnit("watt-hours").register(registry);
+        this.commands = Counter.builder("psbridge.control.commands").tag("mode", mode)
+                .description("setpoints submitted by the controller").register(registry);
+    }
+
+    public void sample(int gridPower, long nowNanos) {
+        long gap = nowNanos - lastSample;
+        if (lastSample != 0 && gap < MAX_GAP_NANOS) {
+            // the previous reading held until now
+            double wattHours = lastGridPower * (gap / 3.6e12);
+            if (wattHours > 0) imported.increment(wattHours);
+            else if (wattHours < 0) exported.increment(-wattHours);
+        }
+        lastSample = nowNanos;
+        lastGridPower = gridPower;
+
+        if (Math.abs(gridPower - target) > SETTLE_BAND) {
+            inBandSince = 0;
+            if (disturbedAt == 0) disturbedAt = nowNanos;
+            return;
+        }
+        if (disturbedAt == 0) return;
+        if (inBandSince == 0) inBandSince = nowNanos;
+        if (nowNanos - inBandSince >= SETTLE_HOLD_NANOS) {
+            settling.record(inBandSince - disturbedAt, TimeUnit.NANOSECONDS);
+            disturbedAt = 0;
+            inBandSince = 0;
+        }
+    }
+
+    public void commands(int submitted) {
+        if (submitted > 0) commands.increment(submitted);
+    }
+}
@@ -1,11 +1,8 @@
 package com.tomvd.model;
 
-public record PowerStreamData(double avgVoltage, int currentPower, String upstreamTopic,String commandTopic) {
-    public PowerStreamData withAvgVoltage(double newAvgVoltage) {
-        return new PowerStreamData(newAvgVoltage, currentPower, upstreamTopic, commandTopic);
-    }
-
-    public PowerStreamData withCurrentPower(int newCurrentPower) {
-        return new PowerStreamData(avgVoltage, newCurrentPower, upstreamTopic, commandTopic);
+public record PowerStreamData(String deviceId, double avgVoltage, int currentPower, int pvInputWatts, long lastUpdated,
+                              String upstreamTopic, String commandTopic) {
+    public PowerStreamData withTelemetry(double newAvgVoltage, int newCurrentPower, int newPvInputWatts, long newLastUpdated) {
+        return new PowerStreamData(deviceId, newAvgVoltage, newCurrentPower, newPvInputWatts, newLastUpdated, upstreamTopic, commandTopic);
     }
 }
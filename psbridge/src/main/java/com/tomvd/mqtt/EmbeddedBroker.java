@@ -0,0 +1,217 @@
+package com.tomvd.mqtt;
+
+import com.tomvd.configuration.BrokerConfiguration;
+import io.moquette.broker.ISslContextCreator;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.IConfig;
+import io.moquette.broker.config.MemoryConfig;
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.messages.InterceptPublishMessage;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.ssl.SslContextBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+Moquette running inside psbridge (broker.enabled). The devices connect to it over TLS like they would to mosquitto,
+Home Assistant and other clients over plain MQTT. Every client publish goes through the interceptor to the routers of
+the embedded links, so device traffic reaches the bridge without another socket hop.
+The TLS listener takes the same PEM certificate and key as the mosquitto setup; the key has to be PKCS#8.
+
+The embedded links don't subscribe through the broker, so they wouldn't get retained messages. The broker keeps a copy
+of every retained message it sees and replays the matching ones when a link subscribes. Without broker.data-path
+Moquette keeps retained messages in memory only, so a restart loses discovery, states and whatever Home Assistant had
+retained (smart/enabled, setpoints). With it, Moquette persists them and the copy is saved there on shutdown.
+ */
+public class EmbeddedBroker implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedBroker.class);
+    private final Server server = new Server();
+    private final List<TopicRouter> routers = new CopyOnWriteArrayList<>();
+    // topic -> payload of the retained message on it
+    private final Map<String, byte[]> retained = new ConcurrentHashMap<>();
+    private final Path retainedFile;
+    private volatile boolean running;
+
+    public EmbeddedBroker(BrokerConfiguration config) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(IConfig.HOST_PROPERTY_NAME, config.getHost());
+        properties.setProperty(IConfig.PORT_PROPERTY_NAME, String.valueOf(config.getPort()));
+        if (config.getDataPath() != null) {
+            Path dataPath = Path.of(config.getDataPath());
+            Files.createDirectories(dataPath);
+            properties.setProperty(IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME, "true");
+            properties.setProperty(IConfig.DATA_PATH_PROPERTY_NAME, dataPath.toString());
+            retainedFile = dataPath.resolve("psbridge-retained.bin");
+            loadRetained();
+        } else {
+            properties.setProperty(IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME, "false");
+            retainedFile = null;
+        }
+        if (config.getPasswordFile() != null) {
+            properties.setProperty(IConfig.PASSWORD_FILE_PROPERTY_NAME, config.getPasswordFile());
+            properties.setProperty(IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME, "false");
+        } else {
+            properties.setProperty(IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+        }
+        ISslContextCreator ssl = null;
+        if (config.getCertFile() != null && config.getKeyFile() != null) {
+            properties.setProperty(IConfig.SSL_PORT_PROPERTY_NAME, String.valueOf(config.getSslPort()));
+            File cert = new File(config.getCertFile());
+            File key = new File(config.getKeyFile());
+            ssl = () -> {
+                try {
+                    return SslContextBuilder.forServer(cert, key).build();
+                } catch (SSLException e) {
+                    throw new UncheckedIOException("Could not load " + cert + " / " + key, e);
+                }
+            };
+        }
+        server.startServer(new MemoryConfig(properties), List.of(new Interceptor()), ssl, null, null);
+        running = true;
+        LOG.info("Embedded broker listening on {}:{}{}", config.getHost(), config.getPort(),
+                ssl != null ? " and TLS " + config.getSslPort() : "");
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    void addRouter(TopicRouter router) {
+        routers.add(router);
+    }
+
+    void removeRouter(TopicRouter router) {
+        routers.remove(router);
+    }
+
+    // hands the retained messages matching a new subscription to the router it was added to
+    void replayRetained(String filter, TopicRouter router) {
+        retained.forEach((topic, payload) -> {
+            if (!matches(filter, topic)) return;
+            try {
+                router.dispatch(topic, payload);
+            } catch (Exception e) {
+                LOG.error("Error processing retained message on {}", topic, e);
+            }
+        });
+    }
+
+    void publish(String topic, byte[] payload, int qos, boolean retained, String clientId) {
+        if (retained) retain(topic, payload);
+        server.internalPublish(MqttMessageBuilders.publish()
+                .topicName(topic)
+                .qos(MqttQoS.valueOf(qos))
+                .retained(retained)
+                .payload(Unpooled.wrappedBuffer(payload))
+                .build(), clientId);
+    }
+
+    @Override
+    public void close() {
+        if (!running) return;
+        running = false;
+        server.stopServer();
+        if (retainedFile != null) saveRetained();
+    }
+
+    private void retain(String topic, byte[] payload) {
+        // an empty retained message clears the topic
+        if (payload.length == 0) {
+            retained.remove(topic);
+        } else {
+            retained.put(topic, payload);
+        }
+    }
+
+    private void loadRetained() throws IOException {
+        if (!Files.exists(retainedFile)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(retainedFile)))) {
+            while (true) {
+                String topic;
+                try {
+                    topic = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                retained.put(topic, payload);
+            }
+        }
+    }
+
+    private void saveRetained() {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(retainedFile)))) {
+            for (Map.Entry<String, byte[]> entry : retained.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not save retained messages to {}", retainedFile, e);
+        }
+    }
+
+    // MQTT topic filter matching, + is one level and # the rest
+    static boolean matches(String filter, String topic) {
+        String[] f = filter.split("/", -1);
+        String[] t = topic.split("/", -1);
+        for (int i = 0; i < f.length; i++) {
+            if (f[i].equals("#")) return true;
+            if (i == t.length) return false;
+            if (!f[i].equals("+") && !f[i].equals(t[i])) return false;
+        }
+        return f.length == t.length;
+    }
+
+    private final class Interceptor extends AbstractInterceptHandler {
+        @Override
+        public String getID() {
+            return "psbridge";
+        }
+
+        // runs on the broker's interceptor thread. Every interceptor gets its own reference to the payload buffer and
+        // has to release it, like AbstractInterceptHandler.onPublish does
+        @Override
+        public void onPublish(InterceptPublishMessage message) {
+            try {
+                String topic = message.getTopicName();
+                byte[] payload = ByteBufUtil.getBytes(message.getPayload());
+                if (message.isRetainFlag()) retain(topic, payload);
+                for (TopicRouter router : routers) {
+                    try {
+                        router.dispatch(topic, payload);
+                    } catch (Exception e) {
+                        LOG.error("Error processing message on {}", topic, e);
+                    }
+                }
+            } finally {
+                super.onPublish(message);
+            }
+        }
+
+        public void onSessionLoopError(Throwable error) {
+            LOG.error("Embedded broker session loop failed", error);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.tomvd.mqtt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/*
+A link straight into the embedded broker. Publishes from clients reach the TopicRouter from the broker's interceptor
+and our own publishes are handed to the broker in memory, nothing goes through a socket. There is no connection to
+lose, so reconnect counters stay at 0 and nothing is ever in flight. Retained messages matching a subscription are
+replayed when it is added, like a broker does for a new subscriber.
+ */
+public class EmbeddedMqttLink implements MqttLink {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedMqttLink.class);
+    private final String name;
+    private final String clientId;
+    private final EmbeddedBroker broker;
+    private final TopicRouter router = new TopicRouter();
+    private final List<Runnable> connectListeners = new CopyOnWriteArrayList<>();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private volatile LongConsumer publishLatencyListener = nanos -> {};
+
+    EmbeddedMqttLink(String name, String clientId, EmbeddedBroker broker) {
+        this.name = name;
+        this.clientId = clientId;
+        this.broker = broker;
+        broker.addRouter(router);
+    }
+
+    @Override
+    public void connect() {
+        for (Runnable listener : connectListeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                LOG.error("Error in connect listener of {} link", name, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return broker.isRunning();
+    }
+
+    @Override
+    public void addConnectListener(Runnable listener) {
+        connectListeners.add(listener);
+    }
+
+    @Override
+    public void subscribe(String topic, TopicHandler handler) {
+        router.add(topic, handler);
+        broker.replayRetained(topic, router);
+    }
+
+    @Override
+    public void subscribe(String filter, Function<String, TopicHandler> binder) {
+        router.addFilter(filter, binder);
+        broker.replayRetained(filter, router);
+    }
+
+    @Override
+    public boolean publish(String topic, byte[] payload, int qos, boolean retained) {
+        if (!broker.isRunning()) {
+            lost.increment();
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            broker.publish(topic, payload, qos, retained, clientId);
+        } catch (RuntimeException e) {
+            failed.increment();
+            LOG.debug("Publish on {} rejected: {}", name, e.toString());
+            return false;
+        }
+        published.increment();
+        publishLatencyListener.accept(System.nanoTime() - start);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        broker.removeRouter(router);
+    }
+
+    @Override
+    public void setPublishLatencyListener(LongConsumer listener) {
+        this.publishLatencyListener = listener;
+    }
+
+    @Override
+    public int getInflight() {
+        return 0;
+    }
+
+    @Override
+    public long getPublished() {
+        return published.sum();
+    }
+
+    @Override
+    public long getOverflowed() {
+        return 0;
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getLost() {
+        return lost.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return 0;
+    }
+
+    @Override
+    public long getLastReconnectMillis() {
+        return 0;
+    }
+}
@@ -0,0 +1,48 @@
+package com.tomvd.mqtt;
+
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/*
+One side of the bridge: the devices (source) or Home Assistant (target). Either a client connection to an external
+broker (PahoMqttLink) or, with broker.enabled, a direct hook into the embedded broker (EmbeddedMqttLink). Create them
+through MqttLinkFactory.
+ */
+public interface MqttLink {
+
+    // blocks until connected or failed, only meant for startup. A failed attempt keeps retrying in the background.
+    void connect();
+
+    boolean isConnected();
+
+    // runs after every successful (re)connect, once the subscriptions are in place
+    void addConnectListener(Runnable listener);
+
+    void subscribe(String topic, TopicHandler handler);
+
+    void subscribe(String filter, Function<String, TopicHandler> binder);
+
+    // returns false when the message was not handed over: not connected, window full or rejected
+    boolean publish(String topic, byte[] payload, int qos, boolean retained);
+
+    void close();
+
+    // called with the nanoseconds between publish and its completion
+    void setPublishLatencyListener(LongConsumer listener);
+
+    int getInflight();
+
+    long getPublished();
+
+    long getOverflowed();
+
+    long getFailed();
+
+    // publishes dropped because we were not connected
+    long getLost();
+
+    long getReconnects();
+
+    // time between losing the connection and being connected again, for the last reconnect
+    long getLastReconnectMillis();
+}
@@ -0,0 +1,53 @@
+package com.tomvd.mqtt;
+
+import com.tomvd.configuration.BrokerConfiguration;
+import com.tomvd.configuration.ClusterConfiguration;
+import com.tomvd.configuration.MQTTConfiguration;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// hands out links to the external broker, or into the embedded one when broker.enabled is set
+@Singleton
+public class MqttLinkFactory {
+    private final MQTTConfiguration mqttConfig;
+    private final BrokerConfiguration brokerConfig;
+    private final ClusterConfiguration clusterConfig;
+    private EmbeddedBroker broker;
+
+    @Inject
+    public MqttLinkFactory(MQTTConfiguration mqttConfig, BrokerConfiguration brokerConfig, ClusterConfiguration clusterConfig) {
+        this.mqttConfig = mqttConfig;
+        this.brokerConfig = brokerConfig;
+        this.clusterConfig = clusterConfig;
+    }
+
+    public MqttLink create(String name, String clientId) throws MqttException {
+        // the broker drops the older of two connections with the same client id
+        if (clusterConfig.isEnabled()) clientId = clientId + "-" + clusterConfig.getNodeId();
+        if (!brokerConfig.isEnabled()) {
+            return new PahoMqttLink(name, clientId, mqttConfig);
+        }
+        return new EmbeddedMqttLink(name, clientId, broker());
+    }
+
+    private synchronized EmbeddedBroker broker() {
+        if (broker == null) {
+            try {
+                broker = new EmbeddedBroker(brokerConfig);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not start the embedded broker", e);
+            }
+        }
+        return broker;
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (broker != null) broker.close();
+    }
+}
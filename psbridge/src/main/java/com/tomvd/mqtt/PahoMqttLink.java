@@ -0,0 +1,288 @@
+package com.tomvd.mqtt;
+
+import com.tomvd.configuration.MQTTConfiguration;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/*
+One connection to an external broker on top of the async Paho client. Inbound messages go through a TopicRouter, publishes
+never wait for the broker: they complete in a callback, and once mqtt.client.max-inflight publishes are outstanding
+new ones are dropped and counted instead of blocking the caller (which is usually another client's receive thread).
+When the connection drops it reconnects by itself with a jittered exponential backoff, subscribes to every registered
+topic again and lets the connect listeners catch up on whatever they held back while offline.
+ */
+public class PahoMqttLink implements MqttLink {
+    private static final Logger LOG = LoggerFactory.getLogger(PahoMqttLink.class);
+    private static final long CONNECT_TIMEOUT_MILLIS = 10_000;
+    private final String name;
+    private final IMqttAsyncClient client;
+    private final MqttConnectOptions options;
+    private final TopicRouter router = new TopicRouter();
+    private final int maxInflight;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final long reconnectMinDelayMillis;
+    private final long reconnectMaxDelayMillis;
+    private final ScheduledExecutorService reconnector;
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    private final List<Runnable> connectListeners = new CopyOnWriteArrayList<>();
+    private volatile long disconnectedAt;
+    private volatile long lastReconnectMillis;
+    private volatile LongConsumer publishLatencyListener = nanos -> {};
+    // only touched from the reconnector thread
+    private int attempt;
+    private final IMqttActionListener publishListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            inflight.decrementAndGet();
+            published.increment();
+            // the user context carries the System.nanoTime() of the publish call
+            publishLatencyListener.accept(System.nanoTime() - (Long) token.getUserContext());
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            inflight.decrementAndGet();
+            failed.increment();
+            LOG.debug("Publish on {} failed: {}", name, exception.toString());
+        }
+    };
+
+    public PahoMqttLink(String name, String clientId, MQTTConfiguration mqttConfig) throws MqttException {
+        this.name = name;
+        this.maxInflight = mqttConfig.getMaxInflight();
+        this.reconnectMinDelayMillis = mqttConfig.getReconnectMinDelay().toMillis();
+        this.reconnectMaxDelayMillis = mqttConfig.getReconnectMaxDelay().toMillis();
+        this.reconnector = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("mqtt-reconnect-" + name).factory());
+        client = new MqttAsyncClient(mqttConfig.getServerUri(), clientId, new MemoryPersistence());
+        options = new MqttConnectOptions();
+        options.setUserName(mqttConfig.getUserName());
+        // paho doesn't take a null password, an anonymous broker gets none
+        if (mqttConfig.getPassword() != null) options.setPassword(mqttConfig.getPassword().toCharArray());
+        options.setMaxInflight(maxInflight);
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable throwable) {
+                LOG.info("Disconnected from {} broker: {}", name, throwable.toString());
+                disconnectedAt = System.nanoTime();
+                scheduleReconnect();
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage mqttMessage) {
+                try {
+                    if (!router.dispatch(topic, mqttMessage.getPayload())) {
+                        LOG.debug("No route for topic {}", topic);
+                    }
+                } catch (Exception e) {
+                    LOG.error("Error processing message on {}", topic, e);
+                }
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+                // completion is handled by the publish listener
+            }
+        });
+    }
+
+    // blocks until connected or failed, only meant for startup. A failed attempt keeps retrying in the background.
+    @Override
+    public void connect() {
+        try {
+            client.connect(options).waitForCompletion(CONNECT_TIMEOUT_MILLIS);
+            onConnected();
+        } catch (MqttException e) {
+            LOG.warn("Could not connect to {} broker, retrying: {}", name, e.toString());
+            disconnectedAt = System.nanoTime();
+            scheduleReconnect();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    // runs after every successful reconnect, once the subscriptions are back
+    @Override
+    public void addConnectListener(Runnable listener) {
+        connectListeners.add(listener);
+    }
+
+    @Override
+    public void subscribe(String topic, TopicHandler handler) {
+        router.add(topic, handler);
+        subscribeIfConnected(topic);
+    }
+
+    @Override
+    public void subscribe(String filter, Function<String, TopicHandler> binder) {
+        router.addFilter(filter, binder);
+        subscribeIfConnected(filter);
+    }
+
+    @Override
+    public void close() {
+        reconnector.shutdownNow();
+        try {
+            if (client.isConnected()) client.disconnect();
+        } catch (MqttException e) {
+            LOG.debug("Error disconnecting from {} broker: {}", name, e.toString());
+        }
+    }
+
+    private void subscribeIfConnected(String filter) {
+        // while offline the subscription is picked up on reconnect
+        if (!client.isConnected()) return;
+        try {
+            client.subscribe(filter, 1);
+        } catch (MqttException e) {
+            LOG.warn("Could not subscribe to {} on {} broker: {}", filter, name, e.toString());
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (!reconnecting.compareAndSet(false, true)) return;
+        reconnector.schedule(this::reconnect, jitter(reconnectMinDelayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect() {
+        try {
+            client.connect(options).waitForCompletion(CONNECT_TIMEOUT_MILLIS);
+        } catch (MqttException e) {
+            if (e.getReasonCode() != MqttException.REASON_CODE_CLIENT_CONNECTED) {
+                long delay = Math.min(reconnectMaxDelayMillis, reconnectMinDelayMillis << Math.min(++attempt, 20));
+                LOG.debug("Reconnect to {} broker failed: {}", name, e.toString());
+                reconnector.schedule(this::reconnect, jitter(delay), TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        attempt = 0;
+        lastReconnectMillis = (System.nanoTime() - disconnectedAt) / 1_000_000;
+        reconnects.increment();
+        reconnecting.set(false);
+        LOG.info("Reconnected to {} broker after {} ms", name, lastReconnectMillis);
+        onConnected();
+    }
+
+    private void onConnected() {
+        List<String> filters = router.getFilters();
+        if (!filters.isEmpty()) {
+            String[] topics = filters.toArray(new String[0]);
+            int[] qos = new int[topics.length];
+            Arrays.fill(qos, 1);
+            try {
+                client.subscribe(topics, qos);
+            } catch (MqttException e) {
+                LOG.warn("Could not resubscribe on {} broker: {}", name, e.toString());
+            }
+        }
+        for (Runnable listener : connectListeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                LOG.error("Error in connect listener of {} broker", name, e);
+            }
+        }
+    }
+
+    // somewhere between half and the full delay, so a fleet of bridges doesn't hit a restarted broker in lockstep
+    private static long jitter(long delayMillis) {
+        return ThreadLocalRandom.current().nextLong(delayMillis / 2, delayMillis + 1);
+    }
+
+    // returns false when the message was not handed to the client: not connected, window full or rejected
+    @Override
+    public boolean publish(String topic, byte[] payload, int qos, boolean retained) {
+        if (!client.isConnected()) {
+            lost.increment();
+            return false;
+        }
+        if (inflight.incrementAndGet() > maxInflight) {
+            inflight.decrementAndGet();
+            overflowed.increment();
+            return false;
+        }
+        try {
+            client.publish(topic, payload, qos, retained, System.nanoTime(), publishListener);
+            return true;
+        } catch (MqttException e) {
+            inflight.decrementAndGet();
+            failed.increment();
+            LOG.debug("Publish on {} rejected: {}", name, e.toString());
+            return false;
+        }
+    }
+
+    // called with the nanoseconds between publish and the broker's acknowledgement (or the write, for QoS 0)
+    @Override
+    public void setPublishLatencyListener(LongConsumer listener) {
+        this.publishLatencyListener = listener;
+    }
+
+    @Override
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    @Override
+    public long getPublished() {
+        return published.sum();
+    }
+
+    @Override
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    // publishes dropped because we were not connected
+    @Override
+    public long getLost() {
+        return lost.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    // time between losing the connection and being connected again, for the last reconnect
+    @Override
+    public long getLastReconnectMillis() {
+        return lastReconnectMillis;
+    }
+}
@@ -0,0 +1,6 @@
+package com.tomvd.mqtt;
+
+@FunctionalInterface
+public interface TopicHandler {
+    void handle(String topic, byte[] payload) throws Exception;
+}
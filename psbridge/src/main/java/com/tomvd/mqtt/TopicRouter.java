@@ -0,0 +1,103 @@
+package com.tomvd.mqtt;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/*
+Maps an incoming topic straight to the handler that was bound to it when we subscribed.
+Plain topics are a single map lookup. Wildcard filters (+ and #) live in a trie; the first message on a new concrete
+topic walks the trie, asks the binder for a handler (that is where device context gets attached) and caches the
+result, so from then on that topic is a single map lookup as well.
+ */
+public class TopicRouter {
+    private static final TopicHandler IGNORE = (topic, payload) -> {};
+    // bounds the cache when a wildcard matches topics we don't know, those are then resolved through the trie each time
+    private static final int MAX_CACHED_TOPICS = 10_000;
+
+    private final Map<String, TopicHandler> routes = new ConcurrentHashMap<>();
+    private final Node root = new Node();
+    private final List<String> filters = new CopyOnWriteArrayList<>();
+
+    public void add(String topic, TopicHandler handler) {
+        if (isWildcard(topic)) throw new IllegalArgumentException("Use addFilter for wildcard topic " + topic);
+        routes.put(topic, handler);
+        filters.add(topic);
+    }
+
+    // binder turns a concrete topic into its handler, or null when the topic should be ignored
+    public synchronized void addFilter(String filter, Function<String, TopicHandler> binder) {
+        if (!isWildcard(filter)) throw new IllegalArgumentException("Not a wildcard filter " + filter);
+        Node node = root;
+        for (String level : filter.split("/", -1)) {
+            node = switch (level) {
+                case "+" -> node.single == null ? (node.single = new Node()) : node.single;
+                case "#" -> node.multi == null ? (node.multi = new Node()) : node.multi;
+                default -> node.children.computeIfAbsent(level, l -> new Node());
+            };
+        }
+        node.binder = binder;
+        filters.add(filter);
+        // a new filter can change what previously ignored topics resolve to
+        routes.values().removeIf(handler -> handler == IGNORE);
+    }
+
+    // every topic and filter that was registered, in registration order
+    public List<String> getFilters() {
+        return filters;
+    }
+
+    // returns false when nothing is subscribed to this topic
+    public boolean dispatch(String topic, byte[] payload) throws Exception {
+        TopicHandler handler = routes.get(topic);
+        if (handler == null) {
+            handler = resolve(topic);
+        }
+        if (handler == IGNORE) return false;
+        handler.handle(topic, payload);
+        return true;
+    }
+
+    private synchronized TopicHandler resolve(String topic) {
+        Function<String, TopicHandler> binder = match(root, topic.split("/", -1), 0);
+        TopicHandler handler = binder == null ? null : binder.apply(topic);
+        if (handler == null) handler = IGNORE;
+        if (routes.size() < MAX_CACHED_TOPICS) {
+            routes.put(topic, handler);
+        }
+        return handler;
+    }
+
+    // exact levels win over +, + wins over #
+    private static Function<String, TopicHandler> match(Node node, String[] levels, int depth) {
+        if (depth == levels.length) {
+            if (node.binder != null) return node.binder;
+            // "a/#" also matches "a"
+            return node.multi != null ? node.multi.binder : null;
+        }
+        Node child = node.children.get(levels[depth]);
+        if (child != null) {
+            Function<String, TopicHandler> binder = match(child, levels, depth + 1);
+            if (binder != null) return binder;
+        }
+        if (node.single != null) {
+            Function<String, TopicHandler> binder = match(node.single, levels, depth + 1);
+            if (binder != null) return binder;
+        }
+        return node.multi != null ? node.multi.binder : null;
+    }
+
+    private static boolean isWildcard(String topic) {
+        return topic.indexOf('+') >= 0 || topic.indexOf('#') >= 0;
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        Node single;
+        Node multi;
+        Function<String, TopicHandler> binder;
+    }
+}
@@ -1,11 +1,10 @@
 package com.tomvd.services;
 
-import org.eclipse.paho.client.mqttv3.MqttException;
-
 public interface ApplicationService {
     void setSl(ServiceLocator sl);
     boolean isOnline();
-    void publishJsonState(String id, String json) throws MqttException;
+    // false when the state could not be handed to the broker
+    boolean publishJsonState(String id, byte[] json);
     Integer getGridPower();
     Boolean getSmartEnabled();
     Integer getSoc();
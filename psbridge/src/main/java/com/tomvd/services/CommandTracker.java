@@ -0,0 +1,187 @@
+package com.tomvd.services;
+
+import com.tomvd.cluster.ClusterMembership;
+import com.tomvd.configuration.CommandConfiguration;
+import com.tomvd.metrics.BridgeMetrics;
+import io.micrometer.core.instrument.Timer;
+import io.micronaut.scheduling.annotation.Scheduled;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Keeps the last power setting sent to each powerstream until the device acknowledges it on the upstream topic, matched
+on seq. One that isn't acknowledged within commands.ack-timeout is sent again with a new seq, up to
+commands.max-retries times, after that it counts as failed. A newer setpoint simply replaces the pending one.
+Resends go through the SetpointCoalescer, which drops them once something newer is on its way. In a cluster the node
+that sent a setting keeps tracking it as long as it still commands the device, as owner or as leader (the controller
+runs on the leader only). Once it is neither, the setting is forgotten.
+The acknowledged setpoint tells the dispatcher what the inverter was actually told, instead of guessing from its output.
+ */
+@Singleton
+public class CommandTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(CommandTracker.class);
+    // an acknowledged setpoint is trusted this long, after that it is sent again if the controller still wants it
+    private static final long ACK_TRUST_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private final SetpointCoalescer commands;
+    private final ClusterMembership cluster;
+    private final DeviceStateStore store;
+    private final long ackTimeoutNanos;
+    private final int maxRetries;
+    private final Timer roundTrip;
+    // seconds since the epoch at startup, so seq keeps going up over restarts like it did when it was the clock
+    private final AtomicInteger seq = new AtomicInteger((int) (System.currentTimeMillis() / 1000));
+    private final Pending[] pending;
+    private final int[] acknowledgedWatts;
+    private final long[] acknowledgedAt;
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+
+    @Inject
+    public CommandTracker(SetpointCoalescer commands, ClusterMembership cluster, DeviceStateStore store,
+                          CommandConfiguration config, BridgeMetrics metrics) {
+        this.commands = commands;
+        this.cluster = cluster;
+        this.store = store;
+        this.ackTimeoutNanos = config.getAckTimeout().toNanos();
+        this.maxRetries = config.getMaxRetries();
+        this.roundTrip = metrics.commandRoundTrip();
+        this.pending = new Pending[store.size()];
+        this.acknowledgedWatts = new int[store.size()];
+        this.acknowledgedAt = new long[store.size()];
+    }
+
+    // strictly increasing and never 0 (a 0 seq is left off the wire), wraps around to 1
+    public int nextSeq() {
+        return seq.updateAndGet(CommandTracker::next);
+    }
+
+    static int next(int seq) {
+        return seq == Integer.MAX_VALUE ? 1 : seq + 1;
+    }
+
+    public synchronized void sent(int device, int seq, int watts) {
+        long now = System.nanoTime();
+        Pending previous = pending[device];
+        if (previous != null && previous.watts == watts) {
+            // a resend (counted in resendExpired), an ack for the previous attempt still counts
+            previous.previousSeq = previous.seq;
+            previous.previousSent = previous.sent;
+            previous.seq = seq;
+            previous.sent = now;
+            previous.deadline = now + ackTimeoutNanos;
+        } else {
+            pending[device] = new Pending(device, seq, watts, now, now + ackTimeoutNanos);
+        }
+    }
+
+    public synchronized void acked(int device, int seq) {
+        long now = System.nanoTime();
+        Pending p = pending[device];
+        if (p == null || (p.seq != seq && p.previousSeq != seq)) {
+            unmatched.increment();
+            return;
+        }
+        pending[device] = null;
+        roundTrip.record(now - (p.seq == seq ? p.sent : p.previousSent), TimeUnit.NANOSECONDS);
+        acked.increment();
+        acknowledgedWatts[device] = p.watts;
+        acknowledgedAt[device] = now;
+    }
+
+    // the setpoint the device last acknowledged, -1 when unknown, outdated or a newer one is still pending
+    public synchronized int acknowledged(String deviceId) {
+        int device = store.indexOf(deviceId);
+        if (device < 0 || pending[device] != null || acknowledgedAt[device] == 0) return -1;
+        if (System.nanoTime() - acknowledgedAt[device] > ACK_TRUST_NANOS) return -1;
+        return acknowledgedWatts[device];
+    }
+
+    @Scheduled(fixedRate = "500ms")
+    void resendExpired() {
+        long now = System.nanoTime();
+        List<Pending> resend = new ArrayList<>();
+        synchronized (this) {
+            for (int device = 0; device < pending.length; device++) {
+                Pending p = pending[device];
+                if (p == null) continue;
+                if (!cluster.owns(store.get(device).deviceId()) && !cluster.isLeader()) {
+                    // this node doesn't command the device any more, whoever does now tracks its own settings
+                    pending[device] = null;
+                    continue;
+                }
+                if (now - p.deadline < 0) continue;
+                if (p.attempt > maxRetries) {
+                    pending[device] = null;
+                    failed.increment();
+                    LOG.warn("{} did not acknowledge power setting {} after {} attempts", store.get(device).deviceId(), p.watts, p.attempt);
+                } else {
+                    // counted whether or not the resend gets out, so the cap also holds while offline
+                    p.attempt++;
+                    retried.increment();
+                    p.deadline = now + ackTimeoutNanos;
+                    resend.add(p);
+                }
+            }
+        }
+        // not under our lock: the coalescer takes the channel lock first and then calls back into sent()
+        for (Pending p : resend) {
+            commands.resend(store.get(p.device).deviceId(), p.watts, () -> stillPending(p));
+        }
+    }
+
+    private synchronized boolean stillPending(Pending p) {
+        return pending[p.device] == p;
+    }
+
+    public long getAcked() {
+        return acked.sum();
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getUnmatched() {
+        return unmatched.sum();
+    }
+
+    // share of the power settings that were acknowledged, NaN until one was acknowledged or failed
+    public double getSuccessRatio() {
+        long ok = acked.sum();
+        long total = ok + failed.sum();
+        return total == 0 ? Double.NaN : (double) ok / total;
+    }
+
+    private static final class Pending {
+        final int device;
+        final int watts;
+        int seq;
+        long sent;
+        long deadline;
+        int previousSeq;
+        long previousSent;
+        int attempt = 1;
+
+        Pending(int device, int seq, int watts, long sent, long deadline) {
+            this.device = device;
+            this.seq = seq;
+            this.watts = watts;
+            this.sent = sent;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -2,9 +2,13 @@ package com.tomvd.services;
 
 import com.tomvd.model.PowerStreamData;
 
+import java.util.List;
+
 public interface DeviceService {
-    void publishPowerSetting(int i);
-    void publishPowerSetting(int i, String deviceId);
+    // false when the power setting could not be handed to the source broker
+    boolean publishPowerSetting(int i, String deviceId);
     void setSl(ServiceLocator sl);
-    PowerStreamData getPowerStreamData();
+    boolean isOnline();
+    // all configured powerstreams, in configuration order
+    List<PowerStreamData> getPowerStreams();
 }
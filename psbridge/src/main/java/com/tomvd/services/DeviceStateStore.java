@@ -0,0 +1,73 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.model.PowerStreamData;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+Latest telemetry of every powerstream, addressed by a dense index assigned at startup in configuration order.
+Each update swaps in one immutable PowerStreamData, so readers always see a consistent power/voltage pair and never
+take a lock. Every device has a single writer (whoever handles its upstream topic), which is why a plain set is enough.
+ */
+@Singleton
+public class DeviceStateStore {
+    private final Map<String, Integer> indexByDevice = new HashMap<>();
+    private final AtomicReferenceArray<PowerStreamData> states;
+
+    @Inject
+    public DeviceStateStore(DevicesConfiguration devicesConfiguration) {
+        List<String> devices = devicesConfiguration.getPowerstreams();
+        states = new AtomicReferenceArray<>(devices.size());
+        for (int i = 0; i < devices.size(); i++) {
+            String device = devices.get(i);
+            indexByDevice.put(device, i);
+            states.set(i, new PowerStreamData(
+                    device,
+                    0,
+                    0,
+                    0,
+                    0,
+                    "/sys/75/"+device+"/thing/protobuf/upstream",
+                    "/sys/75/"+device+"/thing/property/cmd"
+            ));
+        }
+    }
+
+    public int size() {
+        return states.length();
+    }
+
+    // -1 when the device is not configured
+    public int indexOf(String deviceId) {
+        Integer index = indexByDevice.get(deviceId);
+        return index == null ? -1 : index;
+    }
+
+    public PowerStreamData get(int index) {
+        return states.get(index);
+    }
+
+    public PowerStreamData get(String deviceId) {
+        int index = indexOf(deviceId);
+        return index < 0 ? null : states.get(index);
+    }
+
+    public void update(int index, double avgVoltage, int currentPower, int pvInputWatts, long lastUpdated) {
+        states.set(index, states.get(index).withTelemetry(avgVoltage, currentPower, pvInputWatts, lastUpdated));
+    }
+
+    public List<PowerStreamData> snapshot() {
+        PowerStreamData[] snapshot = new PowerStreamData[states.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = states.get(i);
+        }
+        return Arrays.asList(snapshot);
+    }
+}
@@ -1,57 +1,138 @@
 package com.tomvd.services;
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.tomvd.cluster.ClusterMembership;
+import com.tomvd.configuration.DebugConfiguration;
 import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.configuration.KeepAliveConfiguration;
 import com.tomvd.configuration.MQTTConfiguration;
+import com.tomvd.converter.BmsStatusParser;
+import com.tomvd.converter.DecodeResult;
+import com.tomvd.converter.HeartbeatField;
+import com.tomvd.converter.HeartbeatFieldTable;
+import com.tomvd.converter.JsonStateWriter;
 import com.tomvd.converter.ProtobufConverter;
+import com.tomvd.converter.UpstreamRegistry;
+import com.tomvd.history.TelemetryHistory;
+import com.tomvd.metrics.BridgeMetrics;
 import com.tomvd.model.PowerStreamData;
+import com.tomvd.mqtt.MqttLink;
+import com.tomvd.mqtt.MqttLinkFactory;
+import com.tomvd.psbridge.EventRecordItem;
+import com.tomvd.psbridge.EventRecordReport;
 import com.tomvd.psbridge.InverterHeartbeat;
+import com.tomvd.psbridge.ProductNameGetAck;
+import com.tomvd.psbridge.ProductNameSetAck;
+import com.tomvd.psbridge.RTCTimeGetAck;
+import com.tomvd.psbridge.RTCTimeSetAck;
+import io.micrometer.core.instrument.Counter;
 import io.micronaut.context.event.StartupEvent;
 import io.micronaut.runtime.event.annotation.EventListener;
 import io.micronaut.scheduling.annotation.Scheduled;
+import jakarta.annotation.PreDestroy;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
-import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 public class EcoflowService implements DeviceService {
     private static final Logger LOG = LoggerFactory.getLogger(EcoflowService.class);
-    private IMqttClient ecoflowClient;
-    private final ObjectMapper objectMapper;
+    private static final String UPSTREAM_FILTER = "/sys/75/+/thing/protobuf/upstream";
+    private static final byte[] LAST_UPDATED = JsonStateWriter.name("last_updated");
+    private static final long KEEPALIVE_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private MqttLink ecoflowClient;
+    private final BmsStatusParser bmsParser;
     private final ProtobufConverter converter;
+    // one writer per ingest worker
+    private final ThreadLocal<JsonStateWriter> stateWriter = ThreadLocal.withInitial(JsonStateWriter::new);
     private final DevicesConfiguration devicesConfiguration;
     private final MQTTConfiguration mqttConfig;
+    private final MqttLinkFactory links;
     private ServiceLocator sl;
-    String batteryTopic;
 
-    private final HashMap<String, PowerStreamData> data;
+    private final DeviceStateStore data;
+    private final StatePublishFilter publishFilter;
+    private final IngestPipeline pipeline;
+    private final SetpointCoalescer commands;
+    private final CommandTracker tracker;
+    private final TelemetryHistory history;
+    private final BridgeMetrics metrics;
+    private final HeartbeatField[] heartbeatFields;
+    private final ClusterMembership cluster;
+    private final KeepAliveWheel keepAlives;
+    private final UpstreamRegistry upstream;
+    private final String unknownTopic;
+    private final long unknownSampleNanos;
+    // packed cmd_func/cmd_id -> System.nanoTime() of the last sample sent to debug.unknown-topic
+    private final Map<Integer, Long> unknownSampled = new ConcurrentHashMap<>();
+    // per device index
+    private final Counter[] commandsPublished;
+    private final Counter[] heartbeatsPublished;
 
     @Inject
-    public EcoflowService(ProtobufConverter converter, DevicesConfiguration devicesConfiguration, MQTTConfiguration mqttConfig) {
-        this.objectMapper = new ObjectMapper();
+    public EcoflowService(ProtobufConverter converter, DevicesConfiguration devicesConfiguration, MQTTConfiguration mqttConfig,
+                          MqttLinkFactory links, DeviceStateStore data,
+                          StatePublishFilter publishFilter, IngestPipeline pipeline, SetpointCoalescer commands, CommandTracker tracker,
+                          TelemetryHistory history, BridgeMetrics metrics, HeartbeatFieldTable heartbeatFields,
+                          ClusterMembership cluster, BmsStatusParser bmsParser, KeepAliveConfiguration keepAliveConfig,
+                          DebugConfiguration debugConfig) {
+        this.bmsParser = bmsParser;
         this.converter = converter;
         this.devicesConfiguration = devicesConfiguration;
         this.mqttConfig = mqttConfig;
-        data = new HashMap<>();
-        devicesConfiguration.getPowerstreams().forEach(device -> data.put(device,
-                new PowerStreamData(
-                        0,
-                        0,
-                        "/sys/75/"+device+"/thing/protobuf/upstream",
-                        "/sys/75/"+device+"/thing/property/cmd"
-                        )));
-        batteryTopic = "/sys/72/" + devicesConfiguration.getBatteries().getFirst()
-                + "/thing/property/post";
-        objectMapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+        this.links = links;
+        this.data = data;
+        this.publishFilter = publishFilter;
+        this.pipeline = pipeline;
+        this.commands = commands;
+        this.tracker = tracker;
+        this.history = history;
+        this.metrics = metrics;
+        this.heartbeatFields = heartbeatFields.fields();
+        this.cluster = cluster;
+        cluster.addOwnershipListener(this::acquired);
+        this.keepAlives = new KeepAliveWheel(keepAliveConfig, data.size(), KEEPALIVE_TICK_NANOS);
+        this.unknownTopic = debugConfig.getUnknownTopic() == null || debugConfig.getUnknownTopic().isBlank()
+                ? null : debugConfig.getUnknownTopic();
+        this.unknownSampleNanos = debugConfig.getUnknownSampleInterval().toNanos();
+        this.upstream = new UpstreamRegistry(this::handleUnknownFrame)
+                .register(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID, "InverterHeartbeat",
+                        ProtobufConverter::readHeartbeat, this::handleHeartbeat)
+                .register(ProtobufConverter.SET_POWER_CMD_FUNC, ProtobufConverter.SET_POWER_CMD_ID, "setMessage ack",
+                        UpstreamRegistry.NO_PDATA, (device, seq, none) -> tracker.acked(device, seq))
+                // keepalives are acknowledged too, only power settings are tracked
+                .register(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.KEEPALIVE_CMD_ID, "SendMsgHart ack",
+                        UpstreamRegistry.NO_PDATA, (device, seq, none) -> {})
+                .register(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.EVENT_RECORD_REPORT_CMD_ID, "EventRecordReport",
+                        EventRecordReport.parser()::parseFrom, this::handleEventRecords)
+                .register(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.PRODUCT_NAME_SET_CMD_ID, "ProductNameSetAck",
+                        ProductNameSetAck.parser()::parseFrom,
+                        (int device, int seq, ProductNameSetAck ack) ->
+                                LOG.debug("{} product name set, result {}", data.get(device).deviceId(), ack.getResult()))
+                .register(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.PRODUCT_NAME_GET_CMD_ID, "ProductNameGetAck",
+                        ProductNameGetAck.parser()::parseFrom,
+                        (int device, int seq, ProductNameGetAck ack) ->
+                                LOG.debug("{} product name is {}", data.get(device).deviceId(), ack.getName()))
+                .register(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.RTC_TIME_GET_CMD_ID, "RTCTimeGetAck",
+                        RTCTimeGetAck.parser()::parseFrom, this::handleDeviceClock)
+                .register(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.RTC_TIME_SET_CMD_ID, "RTCTimeSetAck",
+                        RTCTimeSetAck.parser()::parseFrom,
+                        (int device, int seq, RTCTimeSetAck ack) ->
+                                LOG.debug("{} clock set, result {}", data.get(device).deviceId(), ack.getResult()));
+        this.commandsPublished = new Counter[data.size()];
+        this.heartbeatsPublished = new Counter[data.size()];
+        for (int i = 0; i < data.size(); i++) {
+            commandsPublished[i] = metrics.published("command", data.get(i).deviceId());
+            heartbeatsPublished[i] = metrics.published("keepalive", data.get(i).deviceId());
+        }
     }
 
     @Override
@@ -60,7 +141,7 @@ public class EcoflowService implements DeviceService {
     }
 
     @Override
-    public PowerStreamData getPowerStreamData() {return data.get(devicesConfiguration.getPowerstreams().getFirst());}
+    public List<PowerStreamData> getPowerStreams() {return data.snapshot();}
 
     @EventListener
     public void onStartup(StartupEvent event) {
@@ -69,148 +150,219 @@ public class EcoflowService implements DeviceService {
         }
         LOG.info("Starting MQTT bridge");
         try {
-            String mqttClientId = "psbridge-ec";
-            ecoflowClient = new MqttClient(mqttConfig.getServerUri(), mqttClientId);
-            MqttConnectOptions options = new MqttConnectOptions();
-            options.setUserName(mqttConfig.getUserName());
-            options.setPassword(mqttConfig.getPassword() != null ? mqttConfig.getPassword().toCharArray() : null);
-
-            // Set up some callbacks
-            ecoflowClient.setCallback(new MqttCallback() {
-                @Override
-                public void connectionLost(Throwable throwable) {
-                    LOG.info("Disconnected from source broker: "+ throwable.toString());
-                }
-
-                @Override
-                public void messageArrived(String topic, MqttMessage mqttMessage) throws IOException {
-                    String[] parts = topic.split("/");
-                    String deviceId = parts[3];
-                    if (topic.equals(batteryTopic))
-                        handleJsonMessage(mqttMessage);
-                    else {
-                        if (topic.equals(data.get(deviceId).upstreamTopic()))
-                            handleProtobufMessage(topic, mqttMessage, deviceId);
-                    }
-
-                }
-
-                @Override
-                public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
-                    // do nothing
-                }
-            });
-            ecoflowClient.connect(options);
-            devicesConfiguration.getPowerstreams().forEach(device -> {
-                try {
-                    ecoflowClient.subscribe(data.get(device).upstreamTopic(), 1);
-                } catch (MqttException e) {
-                    LOG.error("Error starting MQTT bridge", e);
+            ecoflowClient = links.create("source", "psbridge-ec");
+            metrics.link(ecoflowClient, "source");
+            metrics.stateFilter(publishFilter);
+            metrics.commands(commands);
+            metrics.commandAcks(tracker);
+            metrics.upstream(upstream);
+            // setpoints held back while we were offline go out as soon as we are back
+            ecoflowClient.addConnectListener(commands::flush);
+            ecoflowClient.connect();
+            // the receive thread only hands payloads to the lane of their device
+            IngestPipeline.Lane[] lanes = new IngestPipeline.Lane[data.size()];
+            Counter[] received = new Counter[data.size()];
+            for (int i = 0; i < lanes.length; i++) {
+                int device = i;
+                String topic = data.get(device).upstreamTopic();
+                lanes[device] = pipeline.lane(data.get(device).deviceId(), payload -> handleProtobufMessage(topic, payload, device));
+                received[device] = metrics.received("upstream", data.get(device).deviceId());
+                metrics.lane(lanes[device]);
+            }
+            if (mqttConfig.isWildcardSubscriptions()) {
+                ecoflowClient.subscribe(UPSTREAM_FILTER, topic -> {
+                    // /sys/75/<sn>/thing/protobuf/upstream
+                    int device = data.indexOf(topic.split("/")[3]);
+                    return device < 0 ? null : (t, payload) -> {
+                        received[device].increment();
+                        if (wanted(device)) lanes[device].offer(payload);
+                    };
+                });
+            } else {
+                for (int i = 0; i < lanes.length; i++) {
+                    int device = i;
+                    IngestPipeline.Lane lane = lanes[i];
+                    Counter counter = received[i];
+                    ecoflowClient.subscribe(data.get(i).upstreamTopic(), (t, payload) -> {
+                        counter.increment();
+                        if (wanted(device)) lane.offer(payload);
+                    });
                 }
-            });
-            if (!devicesConfiguration.getBatteries().isEmpty())
-                ecoflowClient.subscribe(batteryTopic, 1);
-            if (ecoflowClient.isConnected()) {
-                publishPowerSetting(0);
             }
+            for (String battery : devicesConfiguration.getBatteries()) {
+                IngestPipeline.Lane lane = pipeline.lane(battery, payload -> handleJsonMessage(battery, payload));
+                Counter counter = metrics.received("battery", battery);
+                metrics.lane(lane);
+                ecoflowClient.subscribe("/sys/72/" + battery + "/thing/property/post", (t, payload) -> {
+                    counter.increment();
+                    if (cluster.owns(battery)) lane.offer(payload);
+                });
+            }
+            // held back until connected when the broker isn't there yet, devices taken over later get the same in acquired()
+            devicesConfiguration.getPowerstreams().stream().filter(cluster::owns).forEach(device -> commands.submitPriority(device, 0));
         } catch (MqttException e) {
             LOG.error("Error starting MQTT bridge", e);
         }
     }
 
+    @PreDestroy
+    public void close() {
+        if (ecoflowClient != null) ecoflowClient.close();
+    }
+
+    // a powerstream this node takes over in a cluster starts from 0 like at startup, the controller brings it up again
+    private void acquired(String deviceId) {
+        if (data.indexOf(deviceId) >= 0) commands.submitPriority(deviceId, 0);
+    }
+
+    // in a cluster only the owner handles a device, the leader also needs everyone's telemetry for the controller
+    private boolean wanted(int device) {
+        return cluster.owns(data.get(device).deviceId()) || cluster.isLeader();
+    }
+
     @Override
-    public void publishPowerSetting(int i) {
-        publishPowerSetting(i, devicesConfiguration.getPowerstreams().getFirst());
+    public boolean isOnline() {
+        return ecoflowClient != null && ecoflowClient.isConnected();
     }
 
     @Override
-    public void publishPowerSetting(int i, String deviceId) {
+    public boolean publishPowerSetting(int i, String deviceId) {
         //LOG.info("Publishing to powerstream");
-        byte[] payload = converter.getPowerSettingPayload(i, deviceId);
-        MqttMessage msg = new MqttMessage();
-        msg.setPayload(payload);
-        msg.setQos(0);
-        msg.setRetained(false);
-        try {
-            ecoflowClient.publish(data.get(deviceId).commandTopic(), msg);
-        } catch (MqttException e) {
-            throw new RuntimeException(e);
+        int index = data.indexOf(deviceId);
+        if (index < 0) {
+            LOG.warn("Ignoring power setting for unknown powerstream {}", deviceId);
+            return false;
+        }
+        int seq = tracker.nextSeq();
+        byte[] payload = converter.getPowerSettingPayload(i, deviceId, seq);
+        if (!ecoflowClient.publish(data.get(index).commandTopic(), payload, 0, false)) {
+            LOG.warn("Could not send power setting to {}", deviceId);
+            return false;
         }
+        tracker.sent(index, seq, i);
+        commandsPublished[index].increment();
+        metrics.setpointSent();
+        return true;
     }
 
-    @Scheduled(fixedDelay = "5s")
+    // one slot of the keepalive wheel per tick, see KeepAliveWheel
+    @Scheduled(fixedRate = "250ms")
     void executeHeartBeat() {
+        int[] due = keepAlives.advance();
         if (ecoflowClient != null && ecoflowClient.isConnected() && sl.getApplicationService().isOnline()) {
-            devicesConfiguration.getPowerstreams().forEach(device -> {
-                try {
-                    publishHeartBeat(device);
-                } catch (MqttException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+            long now = System.nanoTime();
+            for (int device : due) {
+                if (keepAlives.needsKeepAlive(device, now) && cluster.owns(data.get(device).deviceId())) publishHeartBeat(device);
+            }
         }
     }
 
-    private void publishHeartBeat(String deviceId) throws MqttException {
-        byte[] payload = converter.convertHeartBeat();
-        MqttMessage msg = new MqttMessage();
-        msg.setPayload(payload);
-        msg.setQos(0);
-        msg.setRetained(false);
-        ecoflowClient.publish(data.get(deviceId).commandTopic(), msg);
+    private void publishHeartBeat(int device) {
+        byte[] payload = converter.convertHeartBeat(tracker.nextSeq());
+        if (ecoflowClient.publish(data.get(device).commandTopic(), payload, 0, false)) {
+            heartbeatsPublished[device].increment();
+        }
     }
 
-    private void handleProtobufMessage(String topic, MqttMessage message, String deviceId) {
+    private void handleProtobufMessage(String topic, byte[] payload, int device) {
         try {
             LOG.debug("Received message on topic {}", topic);
 
-            byte[] payload = message.getPayload();
-            InverterHeartbeat inverterHeartbeat = converter.convert(payload);
-            if (inverterHeartbeat != null && sl.getApplicationService().isOnline()) {
-                ObjectNode jsonNode = objectMapper.createObjectNode();
-
-                jsonNode.put("invOutputWatts", inverterHeartbeat.getInvOutputWatts()/10.0);
-                jsonNode.put("llcTemp", inverterHeartbeat.getLlcTemp()/10.0);
-                jsonNode.put("permanentWatts", inverterHeartbeat.getPermanentWatts()/10.0);
-                jsonNode.put("pv1InputVolt", inverterHeartbeat.getPv1InputVolt()/10.0);
-                jsonNode.put("pv1InputCur", inverterHeartbeat.getPv1InputCur()/10.0);
-                jsonNode.put("pv2InputVolt", inverterHeartbeat.getPv2InputVolt()/10.0);
-                jsonNode.put("pv2InputCur", inverterHeartbeat.getPv2InputCur()/10.0);
-                jsonNode.put("last_updated", System.currentTimeMillis());
-
-                String json = objectMapper.writeValueAsString(jsonNode);
-                sl.getApplicationService().publishJsonState(deviceId, json);
-
-                data.replace(deviceId, data.get(deviceId).withCurrentPower(inverterHeartbeat.getInvOutputWatts()/10));
-                data.replace(deviceId, data.get(deviceId).withAvgVoltage((inverterHeartbeat.getPv1InputVolt()+inverterHeartbeat.getPv2InputVolt())/20.0));
+            long start = System.nanoTime();
+            DecodeResult result = converter.convert(payload, device, upstream);
+            metrics.decode().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (result instanceof DecodeResult.Malformed malformed) {
+                LOG.warn("Dropping malformed frame on {}: {}", topic, malformed.reason());
             }
-
         } catch (Exception e) {
             LOG.error("Error processing message", e);
         }
     }
 
-    private void handleJsonMessage(MqttMessage mqttMessage) throws IOException {
-        JsonParser parser = null;
+    private void handleHeartbeat(int device, int seq, int[] heartbeat) {
+        keepAlives.telemetry(device, System.nanoTime());
+        long now = System.currentTimeMillis();
+        boolean owner = cluster.owns(data.get(device).deviceId());
+        // history is kept whether or not home assistant is listening
+        if (owner) history.append(device, now, heartbeat);
+        if (sl.getApplicationService().isOnline()) {
+            if (owner && publishFilter.shouldPublish(device, heartbeat, now)) {
+                long buildStart = System.nanoTime();
+                byte[] json = buildHeartbeatState(heartbeat);
+                metrics.jsonBuild().record(System.nanoTime() - buildStart, TimeUnit.NANOSECONDS);
+                if (sl.getApplicationService().publishJsonState(data.get(device).deviceId(), json)) {
+                    publishFilter.published(device, heartbeat, now);
+                }
+            }
+
+            data.update(device,
+                    (heartbeat[InverterHeartbeat.PV1_INPUT_VOLT_FIELD_NUMBER]+heartbeat[InverterHeartbeat.PV2_INPUT_VOLT_FIELD_NUMBER])/20.0,
+                    heartbeat[InverterHeartbeat.INV_OUTPUT_WATTS_FIELD_NUMBER]/10,
+                    (heartbeat[InverterHeartbeat.PV1_INPUT_WATTS_FIELD_NUMBER]+heartbeat[InverterHeartbeat.PV2_INPUT_WATTS_FIELD_NUMBER])/10,
+                    now);
+            sl.getSmartService().requestEvaluation();
+        }
+    }
+
+    private void handleEventRecords(int device, int seq, EventRecordReport report) {
+        if (!cluster.owns(data.get(device).deviceId())) return;
+        for (EventRecordItem item : report.getEventItemList()) {
+            LOG.info("{} event {} at {}: {}", data.get(device).deviceId(), item.getEventNo(),
+                    Instant.ofEpochSecond(Integer.toUnsignedLong(item.getTimestamp())), item.getEventDetailList());
+        }
+    }
+
+    private void handleDeviceClock(int device, int seq, RTCTimeGetAck ack) {
+        long drift = Integer.toUnsignedLong(ack.getTimestamp()) - System.currentTimeMillis() / 1000;
+        LOG.debug("{} clock is {} (timezone {}), {}s off", data.get(device).deviceId(),
+                Instant.ofEpochSecond(Integer.toUnsignedLong(ack.getTimestamp())), ack.getTimezone(), drift);
+    }
+
+    // counted by the registry, a sample goes to debug.unknown-topic at most once per type and interval
+    private void handleUnknownFrame(int device, int cmdFunc, int cmdId, byte[] frame) {
+        LOG.debug("No decoder for cmd_func {} cmd_id {} from {}", cmdFunc, cmdId, data.get(device).deviceId());
+        if (unknownTopic == null || !cluster.owns(data.get(device).deviceId())) return;
+        long now = System.nanoTime();
+        boolean[] due = new boolean[1];
+        unknownSampled.compute(UpstreamRegistry.key(cmdFunc, cmdId), (key, last) -> {
+            due[0] = last == null || now - last >= unknownSampleNanos;
+            return due[0] ? now : last;
+        });
+        if (due[0]) {
+            ecoflowClient.publish(unknownTopic + "/" + data.get(device).deviceId() + "/" + cmdFunc + "/" + cmdId, frame, 0, false);
+        }
+    }
+
+    byte[] buildHeartbeatState(int[] heartbeat) {
+        JsonStateWriter writer = stateWriter.get().begin();
+        for (HeartbeatField field : heartbeatFields) {
+            if (field.tenths()) {
+                writer.fieldTenths(field.jsonPrefix(), field.get(heartbeat));
+            } else {
+                writer.field(field.jsonPrefix(), field.get(heartbeat));
+            }
+        }
+        return writer.field(LAST_UPDATED, System.currentTimeMillis()).end();
+    }
+
+    private void handleJsonMessage(String battery, byte[] payload) {
         try {
-            parser = objectMapper.createParser(mqttMessage.getPayload());
-            JsonNode rootNode = parser.readValueAsTree();
-            String typeCode = rootNode.get("typeCode").asText();
-            if (typeCode.equals("bmsStatus")) {
-                JsonNode params = rootNode.get("params");
-                ObjectNode jsonNode = objectMapper.createObjectNode();
-
-                jsonNode.put("soc", params.get("f32ShowSoc").asDouble());
-                jsonNode.put("last_updated", System.currentTimeMillis());
-
-                String json = objectMapper.writeValueAsString(jsonNode);
-                sl.getApplicationService().publishJsonState(devicesConfiguration.getBatteries().getFirst(), json);
+            long start = System.nanoTime();
+            byte[] json = buildBatteryState(payload);
+            metrics.jsonBuild().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (json != null) {
+                sl.getApplicationService().publishJsonState(battery, json);
             }
-        } catch (IOException | MqttException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (parser != null) parser.close();
+        } catch (IOException e) {
+            LOG.warn("Dropping malformed battery post from {}: {}", battery, e.getMessage());
         }
     }
 
+    // returns null when the payload is not a bmsStatus message
+    byte[] buildBatteryState(byte[] payload) throws IOException {
+        JsonStateWriter writer = stateWriter.get().begin();
+        if (!bmsParser.read(payload, writer)) return null;
+        return writer.field(LAST_UPDATED, System.currentTimeMillis()).end();
+    }
+
 }
@@ -1,43 +1,86 @@
 package com.tomvd.services;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.tomvd.cluster.ClusterMembership;
 import com.tomvd.configuration.DevicesConfiguration;
 import com.tomvd.configuration.MQTTConfiguration;
 import com.tomvd.configuration.SmartConfiguration;
+import com.tomvd.converter.BmsField;
+import com.tomvd.converter.BmsStatusParser;
+import com.tomvd.converter.HeartbeatField;
+import com.tomvd.converter.HeartbeatFieldTable;
+import com.tomvd.metrics.BridgeMetrics;
+import com.tomvd.mqtt.MqttLink;
+import com.tomvd.mqtt.MqttLinkFactory;
+import io.micrometer.core.instrument.Counter;
 import io.micronaut.context.event.StartupEvent;
 import io.micronaut.runtime.event.annotation.EventListener;
+import jakarta.annotation.PreDestroy;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
-import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Singleton
 public class HomeAssistantService implements ApplicationService {
     private static final Logger LOG = LoggerFactory.getLogger(HomeAssistantService.class);
-    private IMqttClient haClient;
-    private final ObjectMapper objectMapper;
+    // streaming generator, no reflection so it works the same in a native image
+    private static final JsonFactory JSON = new JsonFactory();
+    private MqttLink haClient;
     private final DevicesConfiguration devicesConfiguration;
     private final MQTTConfiguration mqttConfig;
+    private final MqttLinkFactory links;
     private final SmartConfiguration smartConfiguration;
+    private final SetpointCoalescer commands;
+    private final BridgeMetrics metrics;
+    private final Map<String, Counter> statesPublished = new HashMap<>();
     private ServiceLocator sl;
-    private final String batteryId;
+    private final List<String> batteries;
+    private final BmsField[] batteryFields;
     private static final String TARGET_TOPIC = "ecoflow/";
-    private Integer gridPower;
-    private Boolean smartEnabled;
-    private Integer soc;
-    private Boolean chargerEnabled;
+    // unique ids of the sensors from before the field table, so Home Assistant keeps their history
+    private static final Map<String, String> LEGACY_UNIQUE_IDS = Map.of(
+            "inv_output_watts", "power_out",
+            "pv1_input_volt", "pv1_volt",
+            "pv1_input_cur", "pv1_cur",
+            "pv2_input_volt", "pv2_volt",
+            "pv2_input_cur", "pv2_cur");
+    private final HeartbeatField[] heartbeatFields;
+    private final ClusterMembership cluster;
+    private volatile Integer gridPower;
+    private volatile Boolean smartEnabled;
+    private volatile Integer soc;
+    private volatile Boolean chargerEnabled;
+    private volatile long gridPowerUpdated;
+    private volatile long socUpdated;
 
     @Inject
-    public HomeAssistantService(DevicesConfiguration devicesConfiguration, MQTTConfiguration mqttConfig, SmartConfiguration smartConfiguration) {
-        this.objectMapper = new ObjectMapper();
+    public HomeAssistantService(DevicesConfiguration devicesConfiguration, MQTTConfiguration mqttConfig, MqttLinkFactory links,
+                                SmartConfiguration smartConfiguration,
+                                SetpointCoalescer commands, BridgeMetrics metrics, HeartbeatFieldTable heartbeatFields,
+                                ClusterMembership cluster, BmsStatusParser bmsParser) {
         this.devicesConfiguration = devicesConfiguration;
         this.mqttConfig = mqttConfig;
+        this.links = links;
         this.smartConfiguration = smartConfiguration;
-        batteryId = devicesConfiguration.getBatteries().isEmpty()?null:devicesConfiguration.getBatteries().getFirst();
+        this.commands = commands;
+        this.metrics = metrics;
+        this.heartbeatFields = heartbeatFields.fields();
+        this.cluster = cluster;
+        this.batteries = devicesConfiguration.getBatteries();
+        this.batteryFields = bmsParser.fields();
+        devicesConfiguration.getPowerstreams().forEach(ps -> statesPublished.put(ps, metrics.published("state", ps)));
+        batteries.forEach(battery -> statesPublished.put(battery, metrics.published("state", battery)));
+        metrics.age("grid_power", () -> gridPowerUpdated);
+        metrics.age("soc", () -> socUpdated);
     }
 
     @Override
@@ -48,98 +91,91 @@ public class HomeAssistantService implements ApplicationService {
     @EventListener
     public void onStartup(StartupEvent event) {
         try {
-            String mqttClientId = "psbridge-ha";
-            haClient = new MqttClient(mqttConfig.getServerUri(), mqttClientId);
-            MqttConnectOptions options = new MqttConnectOptions();
-            options.setUserName(mqttConfig.getUserName());
-            options.setPassword(mqttConfig.getPassword() != null ? mqttConfig.getPassword().toCharArray() : null);
-
-            haClient.setCallback(getMqttCallback());
-            haClient.connect(options);
-            devicesConfiguration.getPowerstreams().forEach(ps ->
-                    {
-                        try {
-                            haClient.subscribe(TARGET_TOPIC +ps+"/setpower", 1);
-                        } catch (MqttException e) {
-                            LOG.error("Error starting MQTT bridge", e);
-                        }
-                    }
-            );
+            haClient = links.create("target", "psbridge-ha");
+            metrics.link(haClient, "target");
+            if (mqttConfig.isEnableDiscovery()) {
+                // runs on the first connect as well, and again after a reconnect because the broker may have lost its
+                // retained messages when it restarted
+                haClient.addConnectListener(this::publishAllDiscovery);
+            }
+            haClient.connect();
+            for (String ps : devicesConfiguration.getPowerstreams()) {
+                Counter received = metrics.received("setpower", ps);
+                haClient.subscribe(TARGET_TOPIC +ps+"/setpower", (topic, payload) -> {
+                    received.increment();
+                    handlePowerMessage(payload, ps);
+                });
+            }
             if (smartConfiguration.isEnabled()) {
-                haClient.subscribe(smartConfiguration.getMeterTopic(), 1);
-                haClient.subscribe(smartConfiguration.getEnabledTopic(), 1);
-                haClient.subscribe(smartConfiguration.getSocTopic(), 1);
+                Counter meter = metrics.received("meter", "site");
+                Counter enabled = metrics.received("enabled", "site");
+                Counter soc = metrics.received("soc", "site");
+                haClient.subscribe(smartConfiguration.getMeterTopic(), (topic, payload) -> {
+                    meter.increment();
+                    handleMeterMessage(payload);
+                });
+                haClient.subscribe(smartConfiguration.getEnabledTopic(), (topic, payload) -> {
+                    enabled.increment();
+                    handleEnabledMessage(payload);
+                });
+                haClient.subscribe(smartConfiguration.getSocTopic(), (topic, payload) -> {
+                    soc.increment();
+                    handleSocMessage(payload);
+                });
             }
-            if (haClient.isConnected() && mqttConfig.isEnableDiscovery()) {
-                    publishHomeAssistantDiscovery();
-                    if (batteryId != null) {
-                        publishHomeAssistantBatteryDiscovery(batteryId);
-                    }
-                }
-
         } catch (MqttException e) {
             LOG.error("Error starting MQTT bridge", e);
         }
     }
 
-    private MqttCallback getMqttCallback() {
-        return new MqttCallback() {
-            @Override
-            public void connectionLost(Throwable throwable) {
-                LOG.info("Disconnected from target broker: {}", throwable.toString());
-            }
-            @Override
-            public void messageArrived(String topic, MqttMessage mqttMessage) {
-                if (topic.equals(smartConfiguration.getMeterTopic())) {
-                    handleMeterMessage(mqttMessage);
-                } else if (topic.equals(smartConfiguration.getEnabledTopic())) {
-                    handleEnabledMessage(mqttMessage);
-                } else if (topic.equals(smartConfiguration.getSocTopic())) {
-                    handleSocMessage(mqttMessage);
-                } else {
-                    handlePowerMessage(mqttMessage, topic);
-                }
-            }
-            @Override
-            public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
-                // nothing
-            }
-        };
-    }
-
-    private void handleEnabledMessage(MqttMessage mqttMessage) {
-        String str = new String(mqttMessage.getPayload(), StandardCharsets.UTF_8);
+    private void handleEnabledMessage(byte[] payload) {
+        String str = new String(payload, StandardCharsets.UTF_8);
         smartEnabled = str.equalsIgnoreCase("ON");
     }
 
-    private void handleMeterMessage(MqttMessage mqttMessage) {
-        String str = new String(mqttMessage.getPayload(), StandardCharsets.UTF_8);
+    private void handleMeterMessage(byte[] payload) {
+        metrics.meterReceived();
+        String str = new String(payload, StandardCharsets.UTF_8);
         try {
             gridPower = (int) Double.parseDouble(str);
+            gridPowerUpdated = System.currentTimeMillis();
         } catch (NumberFormatException e) {
             gridPower = null;
         }
+        sl.getSmartService().requestEvaluation();
     }
 
-    private void handlePowerMessage(MqttMessage mqttMessage, String topic) {
-        String str = new String(mqttMessage.getPayload(), StandardCharsets.UTF_8);
-        String[] parts = topic.split("/");
-        String deviceId = parts[1];
+    private void handlePowerMessage(byte[] payload, String deviceId) {
+        String str = new String(payload, StandardCharsets.UTF_8);
         int value = Integer.parseInt(str);
-        if (value >= 0 && value < 800) {
-            sl.getDeviceService().publishPowerSetting(value, deviceId);
+        // every member gets the message, the owner of the device sends it
+        if (value >= 0 && value < 800 && cluster.owns(deviceId)) {
+            commands.submit(deviceId, value);
         }
     }
 
-    private void handleSocMessage(MqttMessage mqttMessage) {
-        String str = new String(mqttMessage.getPayload(), StandardCharsets.UTF_8);
+    private void handleSocMessage(byte[] payload) {
+        String str = new String(payload, StandardCharsets.UTF_8);
         try {
             soc = (int) Double.parseDouble(str);
+            socUpdated = System.currentTimeMillis();
         }catch (NumberFormatException e) {
             soc = null;
         }
     }
 
+    @PreDestroy
+    public void close() {
+        if (haClient != null) haClient.close();
+    }
+
+    private void publishAllDiscovery() {
+        publishHomeAssistantDiscovery();
+        for (String battery : batteries) {
+            publishHomeAssistantBatteryDiscovery(battery);
+        }
+    }
+
     private void publishHomeAssistantDiscovery() {
         devicesConfiguration.getPowerstreams().forEach(this::publishHomeAssistantDiscovery);
     }
@@ -148,106 +184,65 @@ public class HomeAssistantService implements ApplicationService {
         String id = "ps"+(devicesConfiguration.getPowerstreams().indexOf(powerstreamId)+1);
         try {
             // Create Home Assistant discovery message
-            ObjectNode discoveryInfo = objectMapper.createObjectNode();
-            discoveryInfo.put("state_topic", TARGET_TOPIC +powerstreamId+"/state");
-            discoveryInfo.put("qos", 2);
-
-            ObjectNode device = discoveryInfo.putObject("dev");
-            device.put("ids", powerstreamId);
-            device.put("name", powerstreamId);
-            device.put("mf", "EcoFlow");
-            device.put("mdl", "PowerStream");
-            device.put("sw", "");  // TODO
-            device.put("sn", powerstreamId);
-            device.put("hw", ""); // TODO
-
-            // Add origin information
-            ObjectNode origin = discoveryInfo.putObject("o");
-            origin.put("name", "psbridge");
-            origin.put("sw", "0.1");
-            origin.put("url", "https://github.com/tomvd/local-powerstream");
-
-            // Add the description of the components within this device
-            ObjectNode components = discoveryInfo.putObject("cmps");
-            ObjectNode cmp0 = components.putObject("SetOutputWatts");
-            cmp0.put("p", "number");
-            cmp0.put("command_topic", TARGET_TOPIC +powerstreamId+"/setpower");
-            cmp0.put("state_topic", TARGET_TOPIC +powerstreamId+"/state");
-            cmp0.put("value_template", "{{ value_json.permanentWatts}}");
-            cmp0.put("device_class", "power");
-            cmp0.put("unit_of_measurement", "W");
-            cmp0.put("min", 0);
-            cmp0.put("max", 800);
-            cmp0.put("unique_id", id+"_power_set");
-            cmp0.put("mode", "slider");
-            cmp0.put("name", "SetOutputWatts");
-
-
-            ObjectNode cmp1 = components.putObject("OutputWatts");
-            cmp1.put("p", "sensor");
-            cmp1.put("device_class", "power");
-            cmp1.put("unit_of_measurement", "W");
-            cmp1.put("value_template", "{{ value_json.invOutputWatts}}");
-            cmp1.put("unique_id", id+"_power_out");
-            cmp1.put("name", "OutputWatts");
-
-            ObjectNode cmp2 = components.putObject("PermanentWatts");
-            cmp2.put("p", "sensor");
-            cmp2.put("device_class", "power");
-            cmp2.put("unit_of_measurement", "W");
-            cmp2.put("value_template", "{{ value_json.permanentWatts}}");
-            cmp2.put("unique_id", id+"_permanent_watts");
-            cmp2.put("name", "PermanentWatts");
-
-            ObjectNode cmp3 = components.putObject("LlcTemp");
-            cmp3.put("p", "sensor");
-            cmp3.put("device_class", "temperature");
-            cmp3.put("unit_of_measurement", "°C");
-            cmp3.put("value_template", "{{ value_json.llcTemp}}");
-            cmp3.put("unique_id", id+"_llc_temp");
-
-            ObjectNode cmp4 = components.putObject("pv1InputVolt");
-            cmp4.put("p", "sensor");
-            cmp4.put("device_class", "voltage");
-            cmp4.put("unit_of_measurement", "V");
-            cmp4.put("value_template", "{{ value_json.pv1InputVolt}}");
-            cmp4.put("unique_id", id+"_pv1_volt");
-            cmp4.put("name", "pv1InputVolt");
-
-            ObjectNode cmp5 = components.putObject("pv1InputCur");
-            cmp5.put("p", "sensor");
-            cmp5.put("device_class", "current");
-            cmp5.put("unit_of_measurement", "A");
-            cmp5.put("value_template", "{{ value_json.pv1InputCur}}");
-            cmp5.put("unique_id", id+"_pv1_cur");
-            cmp5.put("name", "pv1InputCur");
-
-            ObjectNode cmp6 = components.putObject("pv2InputVolt");
-            cmp6.put("p", "sensor");
-            cmp6.put("device_class", "voltage");
-            cmp6.put("unit_of_measurement", "V");
-            cmp6.put("value_template", "{{ value_json.pv2InputVolt}}");
-            cmp6.put("unique_id", id+"_pv2_volt");
-            cmp6.put("name", "pv2InputVolt");
-
-            ObjectNode cmp7 = components.putObject("pv2InputCur");
-            cmp7.put("p", "sensor");
-            cmp7.put("device_class", "current");
-            cmp7.put("unit_of_measurement", "A");
-            cmp7.put("value_template", "{{ value_json.pv2InputCur}}");
-            cmp7.put("unique_id", id+"_pv2_cur");
-            cmp7.put("name", "pv2InputCur");
+            ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+            try (JsonGenerator json = JSON.createGenerator(out)) {
+                json.writeStartObject();
+                json.writeStringField("state_topic", TARGET_TOPIC +powerstreamId+"/state");
+                json.writeNumberField("qos", 2);
+
+                json.writeObjectFieldStart("dev");
+                json.writeStringField("ids", powerstreamId);
+                json.writeStringField("name", powerstreamId);
+                json.writeStringField("mf", "EcoFlow");
+                json.writeStringField("mdl", "PowerStream");
+                json.writeStringField("sw", "");  // TODO
+                json.writeStringField("sn", powerstreamId);
+                json.writeStringField("hw", ""); // TODO
+                json.writeEndObject();
+
+                // Add origin information
+                json.writeObjectFieldStart("o");
+                json.writeStringField("name", "psbridge");
+                json.writeStringField("sw", "0.1");
+                json.writeStringField("url", "https://github.com/tomvd/local-powerstream");
+                json.writeEndObject();
+
+                // Add the description of the components within this device
+                json.writeObjectFieldStart("cmps");
+                json.writeObjectFieldStart("SetOutputWatts");
+                json.writeStringField("p", "number");
+                json.writeStringField("command_topic", TARGET_TOPIC +powerstreamId+"/setpower");
+                json.writeStringField("state_topic", TARGET_TOPIC +powerstreamId+"/state");
+                json.writeStringField("value_template", "{{ value_json.permanentWatts}}");
+                json.writeStringField("device_class", "power");
+                json.writeStringField("unit_of_measurement", "W");
+                json.writeNumberField("min", 0);
+                json.writeNumberField("max", 800);
+                json.writeStringField("unique_id", id+"_power_set");
+                json.writeStringField("mode", "slider");
+                json.writeStringField("name", "SetOutputWatts");
+                json.writeEndObject();
+
+                // one sensor per exported heartbeat field
+                for (HeartbeatField field : heartbeatFields) {
+                    json.writeObjectFieldStart(field.jsonName());
+                    json.writeStringField("p", "sensor");
+                    if (field.unit().deviceClass() != null) json.writeStringField("device_class", field.unit().deviceClass());
+                    if (field.unit().symbol() != null) json.writeStringField("unit_of_measurement", field.unit().symbol());
+                    json.writeStringField("value_template", "{{ value_json." + field.jsonName() + "}}");
+                    json.writeStringField("unique_id", id + "_" + LEGACY_UNIQUE_IDS.getOrDefault(field.name(), field.name()));
+                    json.writeStringField("name", field.jsonName());
+                    json.writeEndObject();
+                }
+                json.writeEndObject();
+                json.writeEndObject();
+            }
 
             // Discovery topic format: homeassistant/device/HWxxx/config
             String discoveryTopic = String.format("homeassistant/device/%s/config", powerstreamId);
 
             // Publish discovery information
-            MqttMessage discoveryMessage = new MqttMessage();
-            discoveryMessage.setPayload(objectMapper.writeValueAsBytes(discoveryInfo));
-            discoveryMessage.setQos(1);
-            discoveryMessage.setRetained(true);
-
-            haClient.publish(discoveryTopic, discoveryMessage);
+            haClient.publish(discoveryTopic, out.toByteArray(), 1, true);
 
         } catch (Exception e) {
             LOG.error("Error publishing Home Assistant discovery information", e);
@@ -255,61 +250,55 @@ public class HomeAssistantService implements ApplicationService {
     }
 
     private void publishHomeAssistantBatteryDiscovery(String batteryId) {
+        String id = "bt"+(batteries.indexOf(batteryId)+1);
         try {
             // Create Home Assistant discovery message
-            ObjectNode discoveryInfo = objectMapper.createObjectNode();
-            discoveryInfo.put("state_topic", TARGET_TOPIC +batteryId+"/state");
-            discoveryInfo.put("qos", 2);
-
-            ObjectNode device = discoveryInfo.putObject("dev");
-            device.put("ids", batteryId);
-            device.put("name", "Battery1");
-            device.put("mf", "EcoFlow");
-            device.put("mdl", "River 2 Pro");
-            device.put("sw", ""); // TODO
-            device.put("sn", batteryId);
-            device.put("hw", ""); // TODO
-
-            // Add origin information
-            ObjectNode origin = discoveryInfo.putObject("o");
-            origin.put("name", "psbridge");
-            origin.put("sw", ""); // TODO
-            origin.put("url", "https://github.com/tomvd/local-powerstream");
-
-            // Add the description of the components within this device
-            ObjectNode components = discoveryInfo.putObject("cmps");
-/*            ObjectNode cmp0 = components.putObject("SetOutputWatts");
-            cmp0.put("p", "number");
-            cmp0.put("command_topic", targetTopic+powerstreamId+"/setpower");
-            cmp0.put("state_topic", targetTopic+powerstreamId+"/state");
-            cmp0.put("value_template", "{{ value_json.permanentWatts}}");
-            cmp0.put("device_class", "power");
-            cmp0.put("unit_of_measurement", "W");
-            cmp0.put("min", 0);
-            cmp0.put("max", 800);
-            cmp0.put("unique_id", id+"_power_set");
-            cmp0.put("mode", "slider");
-            cmp0.put("name", "SetOutputWatts");
-
-*/
-            ObjectNode cmp1 = components.putObject("SoC");
-            cmp1.put("p", "sensor");
-            cmp1.put("device_class", "battery");
-            cmp1.put("unit_of_measurement", "%");
-            cmp1.put("value_template", "{{ value_json.soc}}");
-            cmp1.put("unique_id", "bt1_soc");
-            cmp1.put("name", "State of charge");
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            try (JsonGenerator json = JSON.createGenerator(out)) {
+                json.writeStartObject();
+                json.writeStringField("state_topic", TARGET_TOPIC +batteryId+"/state");
+                json.writeNumberField("qos", 2);
+
+                json.writeObjectFieldStart("dev");
+                json.writeStringField("ids", batteryId);
+                json.writeStringField("name", "Battery"+(batteries.indexOf(batteryId)+1));
+                json.writeStringField("mf", "EcoFlow");
+                json.writeStringField("mdl", "River 2 Pro");
+                json.writeStringField("sw", ""); // TODO
+                json.writeStringField("sn", batteryId);
+                json.writeStringField("hw", ""); // TODO
+                json.writeEndObject();
+
+                // Add origin information
+                json.writeObjectFieldStart("o");
+                json.writeStringField("name", "psbridge");
+                json.writeStringField("sw", ""); // TODO
+                json.writeStringField("url", "https://github.com/tomvd/local-powerstream");
+                json.writeEndObject();
+
+                // Add the description of the components within this device
+                json.writeObjectFieldStart("cmps");
+                // one sensor per exported bmsStatus field, soc keeps its old component key and name
+                for (BmsField field : batteryFields) {
+                    boolean soc = field.jsonName().equals("soc");
+                    json.writeObjectFieldStart(soc ? "SoC" : field.jsonName());
+                    json.writeStringField("p", "sensor");
+                    if (field.deviceClass() != null) json.writeStringField("device_class", field.deviceClass());
+                    if (field.unit() != null) json.writeStringField("unit_of_measurement", field.unit());
+                    json.writeStringField("value_template", "{{ value_json." + field.jsonName() + "}}");
+                    json.writeStringField("unique_id", id + "_" + field.jsonName());
+                    json.writeStringField("name", soc ? "State of charge" : field.jsonName());
+                    json.writeEndObject();
+                }
+                json.writeEndObject();
+                json.writeEndObject();
+            }
 
             // Discovery topic format: homeassistant/device/HWxxx/config
             String discoveryTopic = String.format("homeassistant/device/%s/config", batteryId);
 
             // Publish discovery information
-            MqttMessage discoveryMessage = new MqttMessage();
-            discoveryMessage.setPayload(objectMapper.writeValueAsBytes(discoveryInfo));
-            discoveryMessage.setQos(1);
-            discoveryMessage.setRetained(true);
-
-            haClient.publish(discoveryTopic, discoveryMessage);
+            haClient.publish(discoveryTopic, out.toByteArray(), 1, true);
 
         } catch (Exception e) {
             LOG.error("Error publishing Home Assistant discovery information", e);
@@ -318,18 +307,16 @@ public class HomeAssistantService implements ApplicationService {
 
     @Override
     public boolean isOnline() {
-        return haClient.isConnected();
+        return haClient != null && haClient.isConnected();
     }
 
     @Override
-    public void publishJsonState(String id, String json) throws MqttException {
-        // Publish to target broker
-        MqttMessage targetMessage = new MqttMessage();
-        targetMessage.setPayload(json.getBytes(StandardCharsets.UTF_8));
-        targetMessage.setQos(1);
-        targetMessage.setRetained(true);
-
-        haClient.publish(TARGET_TOPIC +id+ "/state", targetMessage);
+    public boolean publishJsonState(String id, byte[] json) {
+        // Publish to target broker, a full in-flight window drops the state and the caller tries again with the next one
+        if (!haClient.publish(TARGET_TOPIC +id+ "/state", json, 1, true)) return false;
+        Counter published = statesPublished.get(id);
+        if (published != null) published.increment();
+        return true;
     }
 
     @Override
@@ -356,15 +343,9 @@ public class HomeAssistantService implements ApplicationService {
     public void setCharger(Boolean enabled) {
         chargerEnabled = enabled;
         // Publish to target broker
-        MqttMessage targetMessage = new MqttMessage();
-        targetMessage.setPayload(Boolean.TRUE.equals(enabled)?"on".getBytes(StandardCharsets.UTF_8):"off".getBytes(StandardCharsets.UTF_8));
-        targetMessage.setQos(1);
-        targetMessage.setRetained(true);
-
-        try {
-            haClient.publish(smartConfiguration.getChargerTopic(), targetMessage);
-        } catch (MqttException e) {
-            throw new RuntimeException(e);
+        byte[] payload = Boolean.TRUE.equals(enabled)?"on".getBytes(StandardCharsets.UTF_8):"off".getBytes(StandardCharsets.UTF_8);
+        if (!haClient.publish(smartConfiguration.getChargerTopic(), payload, 1, true)) {
+            LOG.warn("Could not publish charger state");
         }
     }
 }
@@ -0,0 +1,95 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.IngestConfiguration;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+Decouples the MQTT receive thread from the work done per message. Every device gets a lane: a bounded queue of raw
+payloads drained by its own virtual thread, so a slow device or a slow publish only holds up that device.
+Telemetry is only interesting while fresh, so a full lane drops its oldest payload rather than blocking the receiver.
+ */
+@Singleton
+public class IngestPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(IngestPipeline.class);
+    private final int queueCapacity;
+    private final List<Lane> lanes = new CopyOnWriteArrayList<>();
+
+    @Inject
+    public IngestPipeline(IngestConfiguration config) {
+        this.queueCapacity = config.getQueueCapacity();
+    }
+
+    public Lane lane(String name, Consumer<byte[]> handler) {
+        Lane lane = new Lane(name, queueCapacity, handler);
+        lanes.add(lane);
+        return lane;
+    }
+
+    public List<Lane> getLanes() {
+        return lanes;
+    }
+
+    @PreDestroy
+    public void close() {
+        lanes.forEach(lane -> lane.worker.interrupt());
+    }
+
+    public static final class Lane {
+        private final String name;
+        private final ArrayBlockingQueue<byte[]> queue;
+        private final Consumer<byte[]> handler;
+        private final Thread worker;
+        private final LongAdder dropped = new LongAdder();
+
+        private Lane(String name, int capacity, Consumer<byte[]> handler) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.handler = handler;
+            this.worker = Thread.ofVirtual().name("ingest-" + name).start(this::drain);
+        }
+
+        public void offer(byte[] payload) {
+            while (!queue.offer(payload)) {
+                if (queue.poll() != null) dropped.increment();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getDepth() {
+            return queue.size();
+        }
+
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        private void drain() {
+            while (!Thread.currentThread().isInterrupted()) {
+                byte[] payload;
+                try {
+                    payload = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    handler.accept(payload);
+                } catch (Exception e) {
+                    LOG.error("Error processing message for {}", name, e);
+                }
+            }
+        }
+    }
+}
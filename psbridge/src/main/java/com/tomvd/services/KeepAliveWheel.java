@@ -0,0 +1,48 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.KeepAliveConfiguration;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Timing wheel for the keepalives: keepalive.interval is cut into slots of one tick each and device i sits in slot
+i % slots, so every tick handles an equal share of the devices instead of all of them in one burst every interval.
+A device only gets a keepalive when it has not reported for keepalive.fast-threshold, i.e. it fell out of fast mode.
+advance() is called from the scheduler thread only, telemetry() from the ingest workers.
+ */
+class KeepAliveWheel {
+    private final int[][] slots;
+    // System.nanoTime() of the last heartbeat per device, 0 until the first one
+    private final AtomicLongArray lastTelemetry;
+    private final long fastThresholdNanos;
+    private int cursor;
+
+    KeepAliveWheel(KeepAliveConfiguration config, int devices, long tickNanos) {
+        int slotCount = (int) Math.max(1, config.getInterval().toNanos() / tickNanos);
+        this.slots = new int[slotCount][];
+        for (int slot = 0; slot < slotCount; slot++) {
+            slots[slot] = new int[(devices - slot + slotCount - 1) / slotCount];
+            for (int j = 0; j < slots[slot].length; j++) {
+                slots[slot][j] = slot + j * slotCount;
+            }
+        }
+        this.lastTelemetry = new AtomicLongArray(devices);
+        this.fastThresholdNanos = config.getFastThreshold().toNanos();
+    }
+
+    void telemetry(int device, long nowNanos) {
+        lastTelemetry.set(device, nowNanos);
+    }
+
+    // the devices whose turn it is on this tick
+    int[] advance() {
+        int[] due = slots[cursor];
+        cursor = (cursor + 1) % slots.length;
+        return due;
+    }
+
+    boolean needsKeepAlive(int device, long nowNanos) {
+        long last = lastTelemetry.get(device);
+        return last == 0 || nowNanos - last >= fastThresholdNanos;
+    }
+}
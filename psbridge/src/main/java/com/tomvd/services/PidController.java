@@ -0,0 +1,76 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.SmartConfiguration;
+
+/*
+PI(D) controller for the total inverter output, used with smart.mode: pid. The meter reading goes through an EWMA
+first so a kettle switching on doesn't yank the setpoint around, the derivative works on that filtered measurement.
+The output is clamped to [0, max power] and may move at most smart.slew-rate watts per second; whenever clamping or
+slew limiting changes the output the integrator is moved along with it, so it never winds up past what was applied.
+The same goes for a setpoint that was never sent because the change was too small, see applied().
+Not thread safe, SmartServiceImpl calls it from its synchronized evaluate.
+ */
+class PidController {
+    private final double kp;
+    private final double ki;
+    private final double kd;
+    private final double filterSeconds;
+    private final double slewRate;
+    private final int gridTarget;
+    private boolean primed;
+    private double filtered;
+    private double integral;
+    private double output;
+    private long last;
+
+    PidController(SmartConfiguration config) {
+        this.kp = config.getKp();
+        this.ki = config.getKi();
+        this.kd = config.getKd();
+        this.filterSeconds = config.getMeterFilter().toMillis() / 1000.0;
+        this.slewRate = config.getSlewRate();
+        this.gridTarget = config.getGridTarget();
+    }
+
+    // the next update starts over from whatever the inverters are doing by then
+    void reset() {
+        primed = false;
+    }
+
+    // the inverters were left at watts instead of the last output, the integrator follows as if the output had been clamped
+    void applied(int watts) {
+        if (!primed) return;
+        integral += watts - output;
+        output = watts;
+    }
+
+    int update(int gridPower, int currentPower, int maxPower, long nowNanos) {
+        if (!primed) {
+            // bumpless start: the integrator takes over the current output
+            primed = true;
+            filtered = gridPower;
+            integral = currentPower;
+            output = currentPower;
+            last = nowNanos;
+            return currentPower;
+        }
+        double dt = (nowNanos - last) / 1e9;
+        last = nowNanos;
+        double previous = filtered;
+        double alpha = filterSeconds > 0 ? 1 - Math.exp(-dt / filterSeconds) : 1;
+        filtered += alpha * (gridPower - filtered);
+
+        // positive error: still importing, more output needed
+        double error = filtered - gridTarget;
+        double derivative = dt > 0 ? (filtered - previous) / dt : 0;
+        integral += ki * error * dt;
+        double raw = kp * error + integral + kd * derivative;
+
+        double step = slewRate * dt;
+        double applied = Math.max(0, Math.min(maxPower, raw));
+        applied = Math.max(output - step, Math.min(output + step, applied));
+        integral += applied - raw;
+        output = applied;
+        return (int) Math.round(applied);
+    }
+}
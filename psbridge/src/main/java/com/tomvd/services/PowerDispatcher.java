@@ -0,0 +1,107 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.SmartConfiguration;
+import com.tomvd.model.PowerStreamData;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+Splits the power the site needs over all powerstreams that are online. Each inverter first gets what its own PV input
+can deliver, whatever is left is spread according to the headroom each one still has up to its max power.
+Setpoints go out through each inverter's command channel, an inverter that stopped reporting is left out until it
+comes back. A setpoint is only sent again when it differs from the one the inverter acknowledged, or from its output
+while there is no acknowledgement.
+ */
+@Singleton
+public class PowerDispatcher {
+    public static final int DEFAULT_DEVICE_MAX_POWER = 800;
+    private static final int DEADBAND = 10;
+    private final SetpointCoalescer commands;
+    private final CommandTracker tracker;
+    private final Map<String, Integer> deviceMaxPower = new HashMap<>();
+    private final long deviceTimeoutMillis;
+
+    @Inject
+    public PowerDispatcher(SmartConfiguration config, SetpointCoalescer commands, CommandTracker tracker) {
+        this.commands = commands;
+        this.tracker = tracker;
+        this.deviceTimeoutMillis = config.getDeviceTimeout().toMillis();
+        // property keys are not reliably case preserving, so match serial numbers case insensitive
+        config.getDeviceMaxPower().forEach((device, max) -> deviceMaxPower.put(device.toLowerCase(Locale.ROOT), max));
+    }
+
+    public int getMaxPower(String deviceId) {
+        return deviceMaxPower.getOrDefault(deviceId.toLowerCase(Locale.ROOT), DEFAULT_DEVICE_MAX_POWER);
+    }
+
+    public List<PowerStreamData> online(List<PowerStreamData> devices) {
+        long now = System.currentTimeMillis();
+        return devices.stream().filter(d -> d.lastUpdated() > 0 && now - d.lastUpdated() < deviceTimeoutMillis).toList();
+    }
+
+    public int[] allocate(int target, List<PowerStreamData> devices) {
+        int n = devices.size();
+        int[] setpoints = new int[n];
+        int[] caps = new int[n];
+        int totalCap = 0;
+        int totalPv = 0;
+        for (int i = 0; i < n; i++) {
+            caps[i] = getMaxPower(devices.get(i).deviceId());
+            totalCap += caps[i];
+            totalPv += Math.min(Math.max(0, devices.get(i).pvInputWatts()), caps[i]);
+        }
+        target = Math.max(0, Math.min(target, totalCap));
+        if (target == 0) return setpoints;
+
+        if (target <= totalPv) {
+            // PV alone covers it, share in proportion to what each one produces
+            for (int i = 0; i < n; i++) {
+                int pv = Math.min(Math.max(0, devices.get(i).pvInputWatts()), caps[i]);
+                setpoints[i] = (int) ((long) target * pv / totalPv);
+            }
+        } else {
+            int remainder = target - totalPv;
+            int totalSpare = totalCap - totalPv;
+            for (int i = 0; i < n; i++) {
+                int pv = Math.min(Math.max(0, devices.get(i).pvInputWatts()), caps[i]);
+                setpoints[i] = pv + (int) ((long) remainder * (caps[i] - pv) / totalSpare);
+            }
+        }
+        // hand the watts lost to rounding to whoever still has room
+        int left = target;
+        for (int setpoint : setpoints) left -= setpoint;
+        for (int i = 0; i < n && left > 0; i++) {
+            int extra = Math.min(left, caps[i] - setpoints[i]);
+            setpoints[i] += extra;
+            left -= extra;
+        }
+        return setpoints;
+    }
+
+    // returns how many setpoints were submitted
+    public int dispatch(int target, List<PowerStreamData> online) {
+        int[] setpoints = allocate(target, online);
+        int submitted = 0;
+        for (int i = 0; i < setpoints.length; i++) {
+            PowerStreamData device = online.get(i);
+            // compare with what the inverter acknowledged when we know it, its output may not be able to follow
+            int acknowledged = tracker.acknowledged(device.deviceId());
+            int current = acknowledged >= 0 ? acknowledged : device.currentPower();
+            if (Math.abs(current - setpoints[i]) > DEADBAND) { // only publish a new powersetting if it changes > 10w
+                commands.submit(device.deviceId(), setpoints[i]);
+                submitted++;
+            }
+        }
+        return submitted;
+    }
+
+    // every inverter, online or not, goes to 0 right away
+    public void shutdown(List<PowerStreamData> devices) {
+        devices.forEach(device -> commands.submitPriority(device.deviceId(), 0));
+    }
+}
@@ -0,0 +1,156 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.CommandConfiguration;
+import io.micronaut.scheduling.TaskExecutors;
+import io.micronaut.scheduling.TaskScheduler;
+import jakarta.inject.Inject;
+import jakarta.inject.Named;
+import jakarta.inject.Provider;
+import jakarta.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/*
+One command channel per powerstream. Setpoints from Home Assistant and the smart controller only replace the pending
+value of the channel (latest wins), which is sent at most once per commands.min-interval. Safety commands skip the
+queue: they go out right away and drop whatever was still pending, so a stale setpoint can't switch the inverter back on.
+While the source broker is unreachable nothing is sent; the pending slot of each channel then doubles as the offline
+buffer, holding only the latest setpoint per device until flush() is called on reconnect.
+Taking a value and publishing it happen under the channel lock, so what reaches the wire is in the order decided here.
+Resends of unacknowledged setpoints (see CommandTracker) go through the same lock for that reason.
+Publishing only hands the frame to the MQTT client, it doesn't wait for the broker.
+ */
+@Singleton
+public class SetpointCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(SetpointCoalescer.class);
+    private static final int NONE = Integer.MIN_VALUE;
+    private final Provider<DeviceService> deviceService;
+    private final DeviceStateStore store;
+    private final TaskScheduler taskScheduler;
+    private final long minIntervalNanos;
+    private final Channel[] channels;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+
+    @Inject
+    public SetpointCoalescer(Provider<DeviceService> deviceService, DeviceStateStore store, CommandConfiguration config,
+                             @Named(TaskExecutors.SCHEDULED) TaskScheduler taskScheduler) {
+        this.deviceService = deviceService;
+        this.store = store;
+        this.taskScheduler = taskScheduler;
+        this.minIntervalNanos = config.getMinInterval().toNanos();
+        channels = new Channel[store.size()];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = new Channel(store.get(i).deviceId(), System.nanoTime() - minIntervalNanos);
+        }
+    }
+
+    public void submit(String deviceId, int watts) {
+        Channel channel = channel(deviceId);
+        if (channel == null) return;
+        submitted.increment();
+        channel.pending.set(watts);
+        schedule(channel, channel.lastSent + minIntervalNanos - System.nanoTime());
+    }
+
+    public void submitPriority(String deviceId, int watts) {
+        Channel channel = channel(deviceId);
+        if (channel == null) return;
+        submitted.increment();
+        synchronized (channel) {
+            if (!deviceService.get().isOnline()) {
+                channel.pending.set(watts);
+                return;
+            }
+            channel.pending.set(NONE);
+            channel.lastSent = System.nanoTime();
+            send(channel, watts);
+        }
+    }
+
+    // sends an unacknowledged setpoint again, unless a newer one is pending here or stillWanted says it was replaced
+    public void resend(String deviceId, int watts, BooleanSupplier stillWanted) {
+        Channel channel = channel(deviceId);
+        if (channel == null) return;
+        synchronized (channel) {
+            if (channel.pending.get() != NONE || !stillWanted.getAsBoolean() || !deviceService.get().isOnline()) return;
+            channel.lastSent = System.nanoTime();
+            send(channel, watts);
+        }
+    }
+
+    // sends whatever was held back while offline
+    public void flush() {
+        for (Channel channel : channels) {
+            if (channel.pending.get() != NONE) schedule(channel, 0);
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    private Channel channel(String deviceId) {
+        int index = store.indexOf(deviceId);
+        if (index < 0) {
+            LOG.warn("Ignoring power setting for unknown powerstream {}", deviceId);
+            return null;
+        }
+        return channels[index];
+    }
+
+    private void schedule(Channel channel, long waitNanos) {
+        // a drain that is already scheduled will pick up the latest value
+        if (!channel.scheduled.compareAndSet(false, true)) return;
+        taskScheduler.schedule(Duration.ofNanos(Math.max(0, waitNanos)), () -> drain(channel));
+    }
+
+    private void drain(Channel channel) {
+        channel.scheduled.set(false);
+        long wait = channel.lastSent + minIntervalNanos - System.nanoTime();
+        if (wait > 0) {
+            // a priority command went out in the meantime
+            if (channel.pending.get() != NONE) schedule(channel, wait);
+            return;
+        }
+        synchronized (channel) {
+            // offline: leave it pending, flush() picks it up on reconnect
+            if (!deviceService.get().isOnline()) return;
+            int watts = channel.pending.getAndSet(NONE);
+            if (watts == NONE) return;
+            channel.lastSent = System.nanoTime();
+            send(channel, watts);
+        }
+    }
+
+    // callers hold the channel lock
+    private void send(Channel channel, int watts) {
+        try {
+            if (deviceService.get().publishPowerSetting(watts, channel.deviceId)) sent.increment();
+        } catch (Exception e) {
+            LOG.error("Error sending power setting to {}", channel.deviceId, e);
+        }
+    }
+
+    private static final class Channel {
+        final String deviceId;
+        final AtomicInteger pending = new AtomicInteger(NONE);
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        volatile long lastSent;
+
+        Channel(String deviceId, long lastSent) {
+            this.deviceId = deviceId;
+            this.lastSent = lastSent;
+        }
+    }
+}
@@ -2,4 +2,6 @@ package com.tomvd.services;
 
 public interface SmartService {
     void setSl(ServiceLocator sl);
+    // new meter or inverter data arrived, evaluate the control loop (debounced) when running in reactive mode
+    void requestEvaluation();
 }
@@ -1,19 +1,57 @@
 package com.tomvd.services;
 
+import com.tomvd.cluster.ClusterMembership;
 import com.tomvd.configuration.SmartConfiguration;
+import com.tomvd.metrics.BridgeMetrics;
+import com.tomvd.metrics.ControlLoopMetrics;
 import com.tomvd.model.PowerStreamData;
+import io.micronaut.context.exceptions.ConfigurationException;
+import io.micronaut.scheduling.TaskExecutors;
+import io.micronaut.scheduling.TaskScheduler;
 import io.micronaut.scheduling.annotation.Scheduled;
 import jakarta.inject.Inject;
+import jakarta.inject.Named;
 import jakarta.inject.Singleton;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 @Singleton
 public class SmartServiceImpl implements SmartService {
+    private static final long WATCHDOG_NANOS = TimeUnit.SECONDS.toNanos(6);
     private ServiceLocator sl;
     private final SmartConfiguration config;
+    private final TaskScheduler taskScheduler;
+    private final PowerDispatcher dispatcher;
+    private final BridgeMetrics metrics;
+    private final boolean pidMode;
+    private final PidController pid;
+    private final ControlLoopMetrics controlLoop;
+    private final ClusterMembership cluster;
+    private final long minIntervalNanos;
+    private final AtomicBoolean evaluationPending = new AtomicBoolean();
+    private volatile long lastEvaluation;
 
     @Inject
-    public SmartServiceImpl(SmartConfiguration config) {
+    public SmartServiceImpl(SmartConfiguration config, @Named(TaskExecutors.SCHEDULED) TaskScheduler taskScheduler, PowerDispatcher dispatcher,
+                            BridgeMetrics metrics, ClusterMembership cluster) {
         this.config = config;
+        this.taskScheduler = taskScheduler;
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
+        this.cluster = cluster;
+        String mode = config.getMode().toLowerCase(Locale.ROOT);
+        if (!mode.equals("pid") && !mode.equals("proportional")) {
+            throw new ConfigurationException("smart.mode: expected proportional or pid, got " + config.getMode());
+        }
+        this.pidMode = mode.equals("pid");
+        this.pid = new PidController(config);
+        this.controlLoop = metrics.controlLoop(pidMode ? "pid" : "proportional", pidMode ? config.getGridTarget() : 0);
+        this.minIntervalNanos = config.getMinInterval().toNanos();
+        this.lastEvaluation = System.nanoTime() - WATCHDOG_NANOS;
     }
 
     @Override
@@ -21,50 +59,100 @@ public class SmartServiceImpl implements SmartService {
         this.sl = sl;
     }
 
+    @Override
+    public void requestEvaluation() {
+        if (!config.isEnabled() || !config.isReactive()) return;
+        // an evaluation that is already queued will pick up the latest values anyway
+        if (!evaluationPending.compareAndSet(false, true)) return;
+        long wait = Math.max(0, lastEvaluation + minIntervalNanos - System.nanoTime());
+        taskScheduler.schedule(Duration.ofNanos(wait), () -> {
+            evaluationPending.set(false);
+            evaluate();
+        });
+    }
+
+    // in reactive mode this only acts as a watchdog for when the meter goes quiet
     @Scheduled(fixedDelay = "6s")
     public void run() {
         if (!config.isEnabled()) return;
-        PowerStreamData data = sl.getDeviceService().getPowerStreamData();
+        if (config.isReactive() && System.nanoTime() - lastEvaluation < WATCHDOG_NANOS) return;
+        evaluate();
+    }
+
+    private synchronized void evaluate() {
+        lastEvaluation = System.nanoTime();
+        // in a cluster only the leader controls the site
+        if (!cluster.isLeader()) {
+            pid.reset();
+            return;
+        }
+        try {
+            evaluateControl();
+        } finally {
+            metrics.evaluation().record(System.nanoTime() - lastEvaluation, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void evaluateControl() {
+        List<PowerStreamData> devices = sl.getDeviceService().getPowerStreams();
+        List<PowerStreamData> online = dispatcher.online(devices);
+        int currentPower = online.stream().mapToInt(PowerStreamData::currentPower).sum();
         Integer gridPower = sl.getApplicationService().getGridPower();
         Boolean enabled = sl.getApplicationService().getSmartEnabled();
         Boolean chargerEnabled = sl.getApplicationService().getChargerEnabled();
         Integer soc = sl.getApplicationService().getSoc();
-        if (soc == null && data != null && data.currentPower() > 0) {
+        if (soc == null && currentPower > 0) {
             // as safety measure, if we lost connection with the battery - but are using it - stop using it.
-            sl.getDeviceService().publishPowerSetting(0);
+            dispatcher.shutdown(devices);
+            pid.reset();
+            return;
+        }
+        if (online.isEmpty() || gridPower == null || enabled == null || !enabled || soc == null) {
+            pid.reset();
             return;
         }
-        if (data == null || gridPower == null || enabled == null || !enabled || soc == null) {return;}
+        long now = System.nanoTime();
+        controlLoop.sample(gridPower, now);
 
         if (soc < 13) {
-            // battery soc dropped too low, make sure we shut off the inverter and dont do anything more
-            if (data.currentPower() > 0) {
-                sl.getDeviceService().publishPowerSetting(0);
+            // battery soc dropped too low, make sure we shut off the inverters and dont do anything more
+            if (currentPower > 0) {
+                dispatcher.shutdown(devices);
             }
+            pid.reset();
             return;
         }
 
         if (chargerEnabled == null || !chargerEnabled) {
-            if (gridPower > 0) // we are (still) pulling power from the grid - increase output
-            {
-                int newPowerSetting = Math.min(config.getMaxPower() == null?666: config.getMaxPower(), gridPower + data.currentPower());
-                if (Math.abs(data.currentPower() - newPowerSetting) > 10) { // only publish a new powersetting if it changes > 10w
-                    sl.getDeviceService().publishPowerSetting(newPowerSetting);
+            int maxPower = config.getMaxPower() == null?666: config.getMaxPower();
+            int newPowerSetting = currentPower;
+            if (pidMode) {
+                newPowerSetting = pid.update(gridPower, currentPower, maxPower, now);
+            } else {
+                if (gridPower > 0) // we are (still) pulling power from the grid - increase output
+                {
+                    newPowerSetting = Math.min(maxPower, gridPower + currentPower);
                 }
-            }
-            if (gridPower < 0 && data.currentPower() > 0) // we are sending battery power in the grid - lower output
-            {
-                int newPowerSetting = Math.max(0,data.currentPower()+gridPower);
-                if (Math.abs(data.currentPower() - newPowerSetting) > 10) { // only publish a new powersetting if it changes > 10w
-                    sl.getDeviceService().publishPowerSetting(newPowerSetting);
+                if (gridPower < 0 && currentPower > 0) // we are sending battery power in the grid - lower output
+                {
+                    newPowerSetting = Math.max(0, currentPower + gridPower);
                 }
             }
+            int submitted = 0;
+            if (Math.abs(currentPower - newPowerSetting) > 10) { // only publish a new powersetting if it changes > 10w
+                submitted = dispatcher.dispatch(newPowerSetting, online);
+                controlLoop.commands(submitted);
+            }
+            // nothing went out, the inverters stay where they are
+            if (pidMode && submitted == 0) pid.applied(currentPower);
+        } else {
+            pid.reset();
         }
     }
 
     @Scheduled(fixedDelay = "60s")
     public void runCharger() {
-        if (!config.isEnabled()) return;
+        if (!config.isEnabled() || !cluster.isLeader()) return;
         Integer gridPower = sl.getApplicationService().getGridPower();
         Boolean enabled = sl.getApplicationService().getSmartEnabled();
         Boolean chargerEnabled = sl.getApplicationService().getChargerEnabled();
@@ -74,7 +162,7 @@ public class SmartServiceImpl implements SmartService {
         // charger only takes 400-500w but we take some 100W margin to avoid turning it on/off the whole time
         if (soc < 95 && gridPower < -600 && (chargerEnabled == null || !chargerEnabled)) {
             sl.getApplicationService().setCharger(true);
-            sl.getDeviceService().publishPowerSetting(0); // makes sure we are not charging and giving power
+            dispatcher.shutdown(sl.getDeviceService().getPowerStreams()); // makes sure we are not charging and giving power
         }
         // if battery is full or we are using gridpower - turn charger off
         if (soc > 99 || (gridPower > 100 && (chargerEnabled == null || chargerEnabled))) {
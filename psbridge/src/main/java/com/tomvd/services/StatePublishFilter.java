@@ -0,0 +1,76 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.StateConfiguration;
+import com.tomvd.converter.HeartbeatField;
+import com.tomvd.converter.HeartbeatFieldTable;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Suppresses retained state publishes that would not tell Home Assistant anything new. Compares the raw value of every
+published field against what went out last time for that device, and lets a message through anyway once
+state.max-interval has passed. What counts as sent is only updated by published(), after the publish went through,
+so a state the link dropped doesn't hold back the next one. Per device there is only one writer, same as
+DeviceStateStore.
+ */
+@Singleton
+public class StatePublishFilter {
+    private final HeartbeatField[] fields;
+    private final int[] thresholds;
+    private final long maxIntervalMillis;
+    private final int[][] lastValues;
+    private final long[] lastPublished;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    @Inject
+    public StatePublishFilter(StateConfiguration config, DeviceStateStore store, HeartbeatFieldTable table) {
+        fields = table.fields();
+        thresholds = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            HeartbeatField field = fields[i];
+            // values arrive in tenths, a deadband of 0 publishes everything
+            thresholds[i] = switch (field.unit()) {
+                case WATT -> (int) Math.round(config.getWattDeadband() * 10);
+                case VOLT -> (int) Math.round(config.getVoltDeadband() * 10);
+                case AMPERE -> (int) Math.round(config.getAmpereDeadband() * 10);
+                case CELSIUS -> (int) Math.round(config.getCelsiusDeadband() * 10);
+                // any change of the others counts
+                case HERTZ, PERCENT, MINUTE, NONE -> 1;
+            };
+        }
+        maxIntervalMillis = config.getMaxInterval().toMillis();
+        lastValues = new int[store.size()][fields.length];
+        lastPublished = new long[store.size()];
+    }
+
+    public boolean shouldPublish(int device, int[] heartbeat, long now) {
+        int[] last = lastValues[device];
+        boolean publish = now - lastPublished[device] >= maxIntervalMillis;
+        for (int i = 0; !publish && i < fields.length; i++) {
+            publish = Math.abs((long) fields[i].get(heartbeat) - last[i]) >= thresholds[i];
+        }
+        if (!publish) suppressed.increment();
+        return publish;
+    }
+
+    // the state built from this heartbeat went out
+    public void published(int device, int[] heartbeat, long now) {
+        int[] last = lastValues[device];
+        for (int i = 0; i < fields.length; i++) {
+            last[i] = fields[i].get(heartbeat);
+        }
+        lastPublished[device] = now;
+        published.increment();
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+}
@@ -0,0 +1,127 @@
+package com.tomvd;
+
+import com.tomvd.simulator.DeviceSimulator;
+import com.tomvd.simulator.TestBroker;
+import com.tomvd.simulator.SimulatedBattery;
+import com.tomvd.simulator.SimulatedPowerStream;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+Starts the native executable against an embedded broker and a simulated PowerStream, then checks the time from
+process start to the first state message on the Home Assistant side and the resident memory once it is running.
+Excluded from ./gradlew test, ./gradlew nativeStartupTest builds the executable and runs it
+(-Dnative.startup-millis and -Dnative.rss-mb override the budgets).
+ */
+@Tag("native")
+class NativeStartupTest {
+    private static final Logger LOG = LoggerFactory.getLogger(NativeStartupTest.class);
+    private static final Duration HEARTBEAT_INTERVAL = Duration.ofMillis(100);
+    private static final Duration BATTERY_INTERVAL = Duration.ofSeconds(5);
+    private static final long SETTLE_MILLIS = 3_000;
+
+    @Test
+    void startsWithinBudget() throws Exception {
+        Path executable = Path.of(System.getProperty("native.executable", "build/native/nativeCompile/psbridge"));
+        Assumptions.assumeTrue(Files.isExecutable(executable), "no native executable at " + executable);
+        long startupBudget = Long.getLong("native.startup-millis", 1_000);
+        long rssBudget = Long.getLong("native.rss-mb", 64);
+
+        try (TestBroker broker = TestBroker.start();
+             DeviceSimulator simulator = new DeviceSimulator(broker.getServerUri(), 1, 1, HEARTBEAT_INTERVAL, BATTERY_INTERVAL)) {
+            simulator.start();
+
+            CountDownLatch firstState = new CountDownLatch(1);
+            long[] firstStateNanos = new long[1];
+            MqttAsyncClient homeAssistant = new MqttAsyncClient(broker.getServerUri(), "nativetest-ha", new MemoryPersistence());
+            homeAssistant.setCallback(new MqttCallback() {
+                @Override
+                public void connectionLost(Throwable cause) {
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                    // retained states from an earlier run can't exist, the broker is fresh
+                    if (firstState.getCount() > 0) {
+                        firstStateNanos[0] = System.nanoTime();
+                        firstState.countDown();
+                    }
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                }
+            });
+            homeAssistant.connect().waitForCompletion();
+            homeAssistant.subscribe("ecoflow/+/state", 0).waitForCompletion();
+
+            long start = System.nanoTime();
+            Process bridge = new ProcessBuilder(command(executable, broker.getServerUri(), simulator))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            try {
+                Assertions.assertTrue(firstState.await(30, TimeUnit.SECONDS), "psbridge published no state");
+                long startupMillis = TimeUnit.NANOSECONDS.toMillis(firstStateNanos[0] - start);
+
+                Thread.sleep(SETTLE_MILLIS);
+                Assertions.assertTrue(bridge.isAlive(), "psbridge exited");
+                long rssMb = residentMegabytes(bridge.pid());
+                LOG.info("time-to-first-telemetry={} ms (budget {} ms) rss={} MB (budget {} MB)",
+                        startupMillis, startupBudget, rssMb, rssBudget);
+
+                Assertions.assertTrue(startupMillis <= startupBudget,
+                        "first telemetry after " + startupMillis + " ms, budget is " + startupBudget + " ms");
+                if (rssMb >= 0) {
+                    Assertions.assertTrue(rssMb <= rssBudget, "rss is " + rssMb + " MB, budget is " + rssBudget + " MB");
+                }
+            } finally {
+                bridge.destroy();
+                bridge.waitFor(10, TimeUnit.SECONDS);
+                homeAssistant.disconnect().waitForCompletion();
+                homeAssistant.close();
+            }
+        }
+    }
+
+    private static List<String> command(Path executable, String serverUri, DeviceSimulator simulator) {
+        return List.of(executable.toString(),
+                "--micronaut.server.port=-1",
+                "--mqtt.client.server-uri=" + serverUri,
+                "--mqtt.client.enable-discovery=false",
+                "--devices.powerstreams=" + simulator.getPowerStreams().stream()
+                        .map(SimulatedPowerStream::getSerialNumber).collect(Collectors.joining(",")),
+                "--devices.batteries=" + simulator.getBatteries().stream()
+                        .map(SimulatedBattery::getSerialNumber).collect(Collectors.joining(",")),
+                "--smart.enabled=false");
+    }
+
+    // VmRSS from /proc, -1 where there is no /proc
+    private static long residentMegabytes(long pid) throws Exception {
+        Path status = Path.of("/proc", String.valueOf(pid), "status");
+        if (!Files.exists(status)) return -1;
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", "")) / 1024;
+            }
+        }
+        return -1;
+    }
+}
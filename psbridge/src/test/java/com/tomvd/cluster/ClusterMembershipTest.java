@@ -0,0 +1,236 @@
+package com.tomvd.cluster;
+
+import com.tomvd.configuration.ClusterConfiguration;
+import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.mqtt.MqttLink;
+import com.tomvd.mqtt.TopicHandler;
+import com.tomvd.mqtt.TopicRouter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+
+// the members talk over an in-memory broker and the heartbeat is driven by calling tick()
+class ClusterMembershipTest {
+    private static final Duration LEASE_TTL = Duration.ofMillis(300);
+    private static final List<String> DEVICES = IntStream.range(0, 20).mapToObj(i -> "HW51ZOH4SF" + (100_000 + i)).toList();
+
+    @Test
+    void ownerOnlyMovesTheDevicesOfAMemberThatLeft() {
+        List<String> devices = IntStream.range(0, 300).mapToObj(i -> "HW51ZOH4SF" + (100_000 + i)).toList();
+        List<String> members = List.of("psbridge-1", "psbridge-2", "psbridge-3");
+        Map<String, String> before = new HashMap<>();
+        Map<String, Integer> share = new HashMap<>();
+        for (String device : devices) {
+            String owner = ClusterMembership.owner(device, members);
+            Assertions.assertTrue(members.contains(owner));
+            Assertions.assertEquals(owner, ClusterMembership.owner(device, List.of("psbridge-3", "psbridge-1", "psbridge-2")),
+                    "the order of the members doesn't matter");
+            before.put(device, owner);
+            share.merge(owner, 1, Integer::sum);
+        }
+        members.forEach(member -> Assertions.assertTrue(share.getOrDefault(member, 0) > 60, member + " owns " + share.get(member)));
+
+        List<String> remaining = List.of("psbridge-1", "psbridge-3");
+        for (String device : devices) {
+            String owner = ClusterMembership.owner(device, remaining);
+            if (!before.get(device).equals("psbridge-2")) {
+                Assertions.assertEquals(before.get(device), owner, device);
+            } else {
+                Assertions.assertTrue(remaining.contains(owner));
+            }
+        }
+        Assertions.assertNull(ClusterMembership.owner(devices.get(0), List.of()));
+    }
+
+    @Test
+    void rebalancesWhenAMemberJoins() {
+        FakeBroker broker = new FakeBroker();
+        ClusterMembership a = member("a", broker);
+        a.tick();
+        Assertions.assertTrue(DEVICES.stream().allMatch(a::owns));
+        Assertions.assertTrue(a.isLeader());
+
+        ClusterMembership b = member("b", broker);
+        Set<String> acquired = new HashSet<>();
+        b.addOwnershipListener(acquired::add);
+        b.tick();
+        a.tick();
+
+        Assertions.assertEquals(List.of("a", "b"), a.getMembers());
+        Assertions.assertEquals(List.of("a", "b"), b.getMembers());
+        for (String device : DEVICES) {
+            Assertions.assertTrue(a.owns(device) ^ b.owns(device), device + " has exactly one owner");
+        }
+        Assertions.assertFalse(acquired.isEmpty());
+        Assertions.assertTrue(acquired.stream().allMatch(b::owns));
+        Assertions.assertEquals(DEVICES.stream().filter(b::owns).count(), acquired.size());
+        Assertions.assertTrue(a.isLeader());
+        Assertions.assertFalse(b.isLeader());
+    }
+
+    @Test
+    void takesOverTheLeaseOnceItExpires() throws InterruptedException {
+        FakeBroker broker = new FakeBroker();
+        ClusterMembership a = member("a", broker);
+        ClusterMembership b = member("b", broker);
+        a.tick();
+        b.tick();
+        a.tick();
+        Assertions.assertTrue(a.isLeader());
+        Assertions.assertFalse(b.isLeader());
+
+        // a stops renewing without releasing, b waits out the TTL
+        b.tick();
+        Assertions.assertFalse(b.isLeader());
+        Thread.sleep(LEASE_TTL.toMillis() + 50);
+        Assertions.assertFalse(a.isLeader(), "a stops acting before its lease runs out for the others");
+        b.tick();
+
+        Assertions.assertTrue(b.isLeader());
+        Assertions.assertEquals(List.of("b"), b.getMembers());
+        Assertions.assertTrue(DEVICES.stream().allMatch(b::owns));
+    }
+
+    @Test
+    void ownsEverythingWhenNotClustered() {
+        ClusterMembership single = new ClusterMembership(new ClusterConfiguration(), devices(), null, null);
+        Assertions.assertTrue(DEVICES.stream().allMatch(single::owns));
+        Assertions.assertTrue(single.isLeader());
+    }
+
+    private static ClusterMembership member(String nodeId, FakeBroker broker) {
+        ClusterConfiguration config = new ClusterConfiguration();
+        config.setEnabled(true);
+        config.setNodeId(nodeId);
+        config.setLeaseTtl(LEASE_TTL);
+        ClusterMembership membership = new ClusterMembership(config, devices(), null, null);
+        membership.join(broker.link());
+        return membership;
+    }
+
+    private static DevicesConfiguration devices() {
+        DevicesConfiguration devices = new DevicesConfiguration();
+        devices.setPowerstreams(DEVICES);
+        return devices;
+    }
+
+    // hands every publish to every link, retained ones also to later subscriptions
+    private static final class FakeBroker {
+        private final List<TopicRouter> routers = new CopyOnWriteArrayList<>();
+        private final Map<String, byte[]> retained = new ConcurrentHashMap<>();
+
+        MqttLink link() {
+            TopicRouter router = new TopicRouter();
+            routers.add(router);
+            return new FakeLink(this, router);
+        }
+
+        void publish(String topic, byte[] payload, boolean retain) {
+            if (retain) {
+                if (payload.length == 0) retained.remove(topic);
+                else retained.put(topic, payload);
+            }
+            routers.forEach(router -> dispatch(router, topic, payload));
+        }
+
+        void replay(TopicRouter router) {
+            new ArrayList<>(retained.entrySet()).forEach(entry -> dispatch(router, entry.getKey(), entry.getValue()));
+        }
+
+        private static void dispatch(TopicRouter router, String topic, byte[] payload) {
+            try {
+                router.dispatch(topic, payload);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private record FakeLink(FakeBroker broker, TopicRouter router) implements MqttLink {
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void addConnectListener(Runnable listener) {
+        }
+
+        @Override
+        public void subscribe(String topic, TopicHandler handler) {
+            router.add(topic, handler);
+            broker.replay(router);
+        }
+
+        @Override
+        public void subscribe(String filter, Function<String, TopicHandler> binder) {
+            router.addFilter(filter, binder);
+            broker.replay(router);
+        }
+
+        @Override
+        public boolean publish(String topic, byte[] payload, int qos, boolean retained) {
+            broker.publish(topic, payload, retained);
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void setPublishLatencyListener(LongConsumer listener) {
+        }
+
+        @Override
+        public int getInflight() {
+            return 0;
+        }
+
+        @Override
+        public long getPublished() {
+            return 0;
+        }
+
+        @Override
+        public long getOverflowed() {
+            return 0;
+        }
+
+        @Override
+        public long getFailed() {
+            return 0;
+        }
+
+        @Override
+        public long getLost() {
+            return 0;
+        }
+
+        @Override
+        public long getReconnects() {
+            return 0;
+        }
+
+        @Override
+        public long getLastReconnectMillis() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.tomvd.converter;
+
+import com.tomvd.configuration.BatteryConfiguration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// the garbage after the point where parsing has to stop proves the parser did stop there
+class BmsStatusParserTest {
+    private static final String GARBAGE = ",\"after\": ]]] not json";
+
+    private final BmsStatusParser parser = new BmsStatusParser(config("f32ShowSoc", "vol", "temp"));
+
+    @Test
+    void readsTheConfiguredFields() throws IOException {
+        Assertions.assertEquals("{\"soc\":85.5,\"vol\":52000,\"temp\":25}", read(
+                "{\"typeCode\":\"bmsStatus\",\"params\":{\"f32ShowSoc\":85.5,\"cycles\":{\"x\":[1,2]},\"vol\":52000,\"temp\":25}}"));
+    }
+
+    @Test
+    void rejectsOtherPostsAfterTheTypeCode() throws IOException {
+        JsonStateWriter writer = new JsonStateWriter().begin();
+        Assertions.assertFalse(parser.read(bytes("{\"typeCode\":\"pdStatus\"" + GARBAGE), writer));
+        Assertions.assertEquals("{}", text(writer.end()), "the writer is left alone");
+    }
+
+    @Test
+    void acceptsTypeCodeAfterParams() throws IOException {
+        Assertions.assertEquals("{\"soc\":80,\"vol\":52000,\"temp\":20}", read(
+                "{\"id\":1,\"params\":{\"vol\":52000,\"f32ShowSoc\":80,\"temp\":20},\"typeCode\":\"bmsStatus\"}"));
+        Assertions.assertFalse(parser.read(bytes(
+                "{\"params\":{\"vol\":52000,\"f32ShowSoc\":80,\"temp\":20},\"typeCode\":\"pdStatus\"}"), new JsonStateWriter().begin()));
+    }
+
+    @Test
+    void leavesOutMissingFields() throws IOException {
+        Assertions.assertEquals("{\"soc\":80}", read("{\"typeCode\":\"bmsStatus\",\"params\":{\"f32ShowSoc\":80,\"vol\":\"n/a\"}}"));
+    }
+
+    @Test
+    void stopsOnceAllFieldsAreFound() throws IOException {
+        Assertions.assertEquals("{\"soc\":80,\"vol\":52000,\"temp\":20}", read(
+                "{\"typeCode\":\"bmsStatus\",\"params\":{\"f32ShowSoc\":80,\"vol\":52000,\"temp\":20" + GARBAGE));
+    }
+
+    @Test
+    void failsOnMalformedJson() throws IOException {
+        Assertions.assertThrows(IOException.class, () -> read("{\"typeCode\":\"bmsStatus\",\"params\":{\"vol\":}"));
+        Assertions.assertFalse(parser.read(bytes("[1,2]"), new JsonStateWriter().begin()));
+    }
+
+    private String read(String json) throws IOException {
+        JsonStateWriter writer = new JsonStateWriter().begin();
+        Assertions.assertTrue(parser.read(bytes(json), writer));
+        return text(writer.end());
+    }
+
+    private static BatteryConfiguration config(String... fields) {
+        BatteryConfiguration config = new BatteryConfiguration();
+        config.setFields(List.of(fields));
+        return config;
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] json) {
+        return new String(json, StandardCharsets.UTF_8);
+    }
+}
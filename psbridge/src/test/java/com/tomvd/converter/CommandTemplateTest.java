@@ -0,0 +1,81 @@
+package com.tomvd.converter;
+
+import com.tomvd.psbridge.SendMsgHart;
+import com.tomvd.psbridge.setHeader;
+import com.tomvd.psbridge.setMessage;
+import com.tomvd.psbridge.setValue;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+// the pre-encoded frames have to stay byte for byte what the protobuf builders produce
+class CommandTemplateTest {
+    private static final String[] SERIALS = {"HW51ZOH4SF123456", "HW5", "HW51ZOH4SF1234567890ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcdefghijklmnopqrstuvwxyz0123456789ABCDEFGHIJKLMN"};
+    private static final int[] WATTS = {-5, 0, 1, 12, 13, 100, 347, 800, 1638, 1639, 6000};
+    private static final int[] SEQS = {1, 127, 128, 16_383, 16_384, 1_700_000_000, Integer.MAX_VALUE};
+
+    @Test
+    void powerSettingMatchesBuilder() {
+        ProtobufConverter converter = new ProtobufConverter();
+        for (String sn : SERIALS) {
+            for (int watts : WATTS) {
+                for (int seq : SEQS) {
+                    Assertions.assertArrayEquals(builderPowerSetting(watts, sn, seq), converter.getPowerSettingPayload(watts, sn, seq),
+                            "sn=" + sn + " watts=" + watts + " seq=" + seq);
+                }
+            }
+        }
+    }
+
+    @Test
+    void keepAliveMatchesBuilder() {
+        for (int seq : SEQS) {
+            Assertions.assertArrayEquals(builderKeepAlive(seq), ProtobufConverter.keepAlive(seq), "seq=" + seq);
+        }
+    }
+
+    private static byte[] builderPowerSetting(int watts, String sn, int seq) {
+        int deciWatts = Math.max(1, watts*10);
+        return setMessage.newBuilder()
+                .setHeader(setHeader.newBuilder()
+                        .setPdata(setValue.newBuilder()
+                                .setValue(deciWatts)
+                                .build())
+                        .setSrc(32)
+                        .setDest(53)
+                        .setDSrc(1)
+                        .setDDest(1)
+                        .setCheckType(3)
+                        .setCmdFunc(20)
+                        .setCmdId(129)
+                        .setDataLen(deciWatts > 127?3:2)
+                        .setNeedAck(1)
+                        .setSeq(seq)
+                        .setVersion(19)
+                        .setPayloadVer(1)
+                        .setFrom("ios")
+                        .setDeviceSn(sn)
+                        .build())
+                .build()
+                .toByteArray();
+    }
+
+    private static byte[] builderKeepAlive(int seq) {
+        return SendMsgHart.newBuilder()
+                .setLinkId(15)
+                .setSrc(32)
+                .setDest(53)
+                .setDSrc(1)
+                .setDDest(1)
+                .setEncType(0)
+                .setCheckType(0)
+                .setCmdFunc(32)
+                .setCmdId(10)
+                .setDataLen(2)
+                .setNeedAck(1)
+                .setIsAck(0)
+                .setAckType(0)
+                .setSeq(seq)
+                .build()
+                .toByteArray();
+    }
+}
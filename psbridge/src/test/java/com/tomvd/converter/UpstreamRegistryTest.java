@@ -0,0 +1,137 @@
+package com.tomvd.converter;
+
+import com.google.protobuf.ByteString;
+import com.tomvd.psbridge.Header;
+import com.tomvd.psbridge.HeaderMessage;
+import com.tomvd.psbridge.InverterHeartbeat;
+import com.tomvd.psbridge.RTCTimeSetAck;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// frames are built with the generated builders, the handlers write what they got to a log
+class UpstreamRegistryTest {
+    private static final int DEVICE = 3;
+    private static final int RTC_SET = UpstreamRegistry.key(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.RTC_TIME_SET_CMD_ID);
+    // a varint tag without its value
+    private static final ByteString TRUNCATED = ByteString.copyFrom(new byte[]{0x08});
+
+    private final ProtobufConverter converter = new ProtobufConverter();
+    private final List<String> log = new ArrayList<>();
+    private final UpstreamRegistry registry = new UpstreamRegistry(
+            (device, cmdFunc, cmdId, frame) -> log.add("unknown " + device + " " + cmdFunc + "/" + cmdId))
+            .register(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID, "InverterHeartbeat",
+                    ProtobufConverter::readHeartbeat,
+                    (device, seq, heartbeat) -> log.add("heartbeat " + device + " " + seq + " " + heartbeat[InverterHeartbeat.PV1_INPUT_WATTS_FIELD_NUMBER]))
+            .register(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.RTC_TIME_SET_CMD_ID, "RTCTimeSetAck",
+                    RTCTimeSetAck.parser()::parseFrom,
+                    (int device, int seq, RTCTimeSetAck ack) -> log.add("clock " + device + " " + seq + " " + ack.getResult()));
+
+    @Test
+    void rejectsIdsOutOfRange() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> register(256, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> register(-1, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> register(20, 256));
+        register(255, 255);
+        register(0, 0);
+    }
+
+    @Test
+    void rejectsDuplicates() {
+        IllegalStateException e = Assertions.assertThrows(IllegalStateException.class,
+                () -> register(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID));
+        Assertions.assertTrue(e.getMessage().contains("InverterHeartbeat"), e.getMessage());
+    }
+
+    @Test
+    void countsUnknownTypes() {
+        DecodeResult result = converter.convert(frame(header(99, 7, 1, ByteString.EMPTY)), DEVICE, registry);
+
+        Assertions.assertSame(DecodeResult.IGNORED, result);
+        Assertions.assertEquals(1, registry.getUnknown());
+        Assertions.assertEquals(List.of("unknown 3 99/7"), log);
+    }
+
+    @Test
+    void dispatchesEveryHeaderOfAFrame() {
+        DecodeResult result = converter.convert(frame(
+                header(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID, 11, heartbeat(1234)),
+                header(99, 7, 12, ByteString.EMPTY),
+                header(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.RTC_TIME_SET_CMD_ID, 13,
+                        RTCTimeSetAck.newBuilder().setResult(1).build().toByteString())), DEVICE, registry);
+
+        Assertions.assertSame(DecodeResult.HANDLED, result);
+        Assertions.assertEquals(List.of("heartbeat 3 11 1234", "unknown 3 99/7", "clock 3 13 1"), log);
+        Assertions.assertEquals(1, registry.getUnknown());
+    }
+
+    @Test
+    void failedHeaderDoesNotStopTheOthers() {
+        DecodeResult result = converter.convert(frame(
+                header(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.RTC_TIME_SET_CMD_ID, 11, TRUNCATED),
+                header(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID, 12, heartbeat(500))), DEVICE, registry);
+
+        Assertions.assertSame(DecodeResult.HANDLED, result);
+        Assertions.assertEquals(List.of("heartbeat 3 12 500"), log);
+        Assertions.assertEquals(1, registry.getFailed(RTC_SET));
+        Assertions.assertEquals(0, registry.getFailed(UpstreamRegistry.key(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID)));
+        Assertions.assertEquals(0, registry.getFailed(UpstreamRegistry.key(99, 7)));
+    }
+
+    @Test
+    void frameIsMalformedWhenNoHeaderWasHandled() {
+        DecodeResult failed = converter.convert(frame(
+                header(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.RTC_TIME_SET_CMD_ID, 11, TRUNCATED),
+                header(99, 7, 12, ByteString.EMPTY)), DEVICE, registry);
+        Assertions.assertInstanceOf(DecodeResult.Malformed.class, failed);
+        Assertions.assertEquals(1, registry.getFailed(RTC_SET));
+
+        // a heartbeat header without pdata can't be read either
+        Assertions.assertInstanceOf(DecodeResult.Malformed.class, converter.convert(frame(
+                header(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID, 13, ByteString.EMPTY)), DEVICE, registry));
+        // a header cut off in the middle of cmd_func
+        Assertions.assertInstanceOf(DecodeResult.Malformed.class, converter.convert(new byte[]{0x0A, 0x03, 0x40}, DEVICE, registry));
+        Assertions.assertEquals(List.of("unknown 3 99/7"), log);
+    }
+
+    @Test
+    void countsFailingHandlers() {
+        registry.register(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.EVENT_RECORD_REPORT_CMD_ID, "EventRecordReport",
+                UpstreamRegistry.NO_PDATA, (device, seq, none) -> {
+                    throw new IllegalStateException("handler bug");
+                });
+        DecodeResult result = converter.convert(frame(
+                header(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.EVENT_RECORD_REPORT_CMD_ID, 11, ByteString.EMPTY),
+                header(ProtobufConverter.HEARTBEAT_CMD_FUNC, ProtobufConverter.HEARTBEAT_CMD_ID, 12, heartbeat(500))), DEVICE, registry);
+
+        Assertions.assertSame(DecodeResult.HANDLED, result);
+        Assertions.assertEquals(List.of("heartbeat 3 12 500"), log);
+        Assertions.assertEquals(1, registry.getFailed(
+                UpstreamRegistry.key(ProtobufConverter.PLATFORM_CMD_FUNC, ProtobufConverter.EVENT_RECORD_REPORT_CMD_ID)));
+    }
+
+    @Test
+    void listsTheRegisteredTypes() {
+        List<String> types = new ArrayList<>();
+        registry.forEachType((name, key) -> types.add(name + " " + key));
+        Assertions.assertEquals(List.of("InverterHeartbeat " + (20 << 8 | 1), "RTCTimeSetAck " + RTC_SET), types);
+    }
+
+    private void register(int cmdFunc, int cmdId) {
+        registry.register(cmdFunc, cmdId, "test", UpstreamRegistry.NO_PDATA, (device, seq, none) -> {});
+    }
+
+    private static ByteString heartbeat(int pv1Watts) {
+        return InverterHeartbeat.newBuilder().setPv1InputWatts(pv1Watts).build().toByteString();
+    }
+
+    private static Header header(int cmdFunc, int cmdId, int seq, ByteString pdata) {
+        return Header.newBuilder().setCmdFunc(cmdFunc).setCmdId(cmdId).setSeq(seq).setPdata(pdata).build();
+    }
+
+    private static byte[] frame(Header... headers) {
+        return HeaderMessage.newBuilder().addAllHeader(List.of(headers)).build().toByteArray();
+    }
+}
@@ -0,0 +1,52 @@
+package com.tomvd.history;
+
+import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.configuration.HistoryConfiguration;
+import com.tomvd.configuration.StateConfiguration;
+import com.tomvd.converter.HeartbeatFieldTable;
+import com.tomvd.services.DeviceStateStore;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+class HistoryControllerTest {
+    private static final String DEVICE = "HW51ZOH4SF100000";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void clampsTheRange() {
+        TelemetryHistory history = history();
+        history.append(0, 1000, new int[HeartbeatFieldTable.SLOTS]);
+        HistoryController controller = new HistoryController(history, store());
+        // to - from would overflow without the clamp
+        HttpResponse<HistoryRange> response = controller.range(DEVICE, Long.MIN_VALUE, 2000L, 10);
+        Assertions.assertEquals(HttpStatus.OK, response.getStatus());
+        Assertions.assertEquals(0, response.body().from());
+        Assertions.assertEquals(1, response.body().buckets().get(0).samples());
+
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, controller.range(DEVICE, Long.MIN_VALUE, -1L, 10).getStatus());
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST, controller.range(DEVICE, 100L, 100L, 10).getStatus());
+        Assertions.assertEquals(HttpStatus.NOT_FOUND, controller.range("HW5", null, null, null).getStatus());
+    }
+
+    private TelemetryHistory history() {
+        HistoryConfiguration config = new HistoryConfiguration();
+        config.setEnabled(true);
+        config.setDirectory(directory.toString());
+        config.setCapacity(16);
+        return new TelemetryHistory(config, store(), new HeartbeatFieldTable(new StateConfiguration()));
+    }
+
+    private static DeviceStateStore store() {
+        DevicesConfiguration devices = new DevicesConfiguration();
+        devices.setPowerstreams(List.of(DEVICE));
+        return new DeviceStateStore(devices);
+    }
+}
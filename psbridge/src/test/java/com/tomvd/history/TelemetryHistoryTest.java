@@ -0,0 +1,165 @@
+package com.tomvd.history;
+
+import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.configuration.HistoryConfiguration;
+import com.tomvd.configuration.StateConfiguration;
+import com.tomvd.converter.HeartbeatFieldTable;
+import com.tomvd.psbridge.InverterHeartbeat;
+import com.tomvd.services.DeviceStateStore;
+import io.micronaut.context.exceptions.ConfigurationException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// invOutputWatts is stored in tenths, invStatus as is; timestamps are small numbers so buckets are easy to work out
+class TelemetryHistoryTest {
+    private static final String DEVICE = "HW51ZOH4SF100000";
+    private static final List<String> FIELDS = List.of("invOutputWatts", "invStatus");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void bucketsMinMaxAndAverage() {
+        TelemetryHistory history = history(100, FIELDS);
+        for (int t = 0; t < 10; t++) history.append(0, t, heartbeat(t * 10, t % 3));
+
+        HistoryRange range = history.query(0, 0, 20, 4);
+        Assertions.assertEquals(DEVICE, range.deviceId());
+        // 0-5 and 5-10 have records, 10-15 and 15-20 are empty and left out
+        Assertions.assertEquals(2, range.buckets().size());
+        HistoryRange.Bucket first = range.buckets().get(0);
+        Assertions.assertEquals(0, first.start());
+        Assertions.assertEquals(5, first.end());
+        Assertions.assertEquals(5, first.samples());
+        Assertions.assertEquals(new HistoryRange.Stats(0, 4, 2), first.fields().get("invOutputWatts"));
+        Assertions.assertEquals(new HistoryRange.Stats(0, 2, 0.8), first.fields().get("invStatus"));
+        HistoryRange.Bucket second = range.buckets().get(1);
+        Assertions.assertEquals(new HistoryRange.Stats(5, 9, 7), second.fields().get("invOutputWatts"));
+        Assertions.assertEquals(new HistoryRange.Stats(0, 2, 1), second.fields().get("invStatus"));
+
+        // to is exclusive
+        Assertions.assertEquals(3, history.query(0, 2, 5, 1).buckets().get(0).samples());
+    }
+
+    @Test
+    void keepsTheLatestRecordsWhenFull() {
+        TelemetryHistory history = history(4, FIELDS);
+        for (int t = 1; t <= 6; t++) history.append(0, t, heartbeat(t * 10, 0));
+
+        // 3 to 6 are in the ring, 3 is in the slot the next append writes and is left out
+        HistoryRange.Bucket all = history.query(0, 0, 100, 1).buckets().get(0);
+        Assertions.assertEquals(3, all.samples());
+        Assertions.assertEquals(new HistoryRange.Stats(4, 6, 5), all.fields().get("invOutputWatts"));
+    }
+
+    @Test
+    void continuesAnExistingFile() {
+        TelemetryHistory history = history(4, FIELDS);
+        for (int t = 1; t <= 3; t++) history.append(0, t, heartbeat(t * 10, 0));
+        history.close();
+
+        TelemetryHistory reopened = history(4, FIELDS);
+        Assertions.assertEquals(3, reopened.query(0, 0, 100, 1).buckets().get(0).samples());
+        reopened.append(0, 4, heartbeat(40, 0));
+        reopened.append(0, 5, heartbeat(50, 0));
+        HistoryRange.Bucket all = reopened.query(0, 0, 100, 1).buckets().get(0);
+        Assertions.assertEquals(3, all.samples());
+        Assertions.assertEquals(new HistoryRange.Stats(3, 5, 4), all.fields().get("invOutputWatts"));
+    }
+
+    @Test
+    void startsOverWhenTheLayoutChanges() {
+        TelemetryHistory history = history(4, FIELDS);
+        history.append(0, 1, heartbeat(10, 0));
+        history.close();
+
+        Assertions.assertTrue(history(4, List.of("invStatus", "invOutputWatts")).query(0, 0, 100, 1).buckets().isEmpty(),
+                "other fields");
+        history(4, FIELDS).append(0, 1, heartbeat(10, 0));
+        Assertions.assertTrue(history(8, FIELDS).query(0, 0, 100, 1).buckets().isEmpty(), "other capacity");
+    }
+
+    @Test
+    void rejectsAnEmptyRing() {
+        Assertions.assertThrows(ConfigurationException.class, () -> history(0, FIELDS));
+        Assertions.assertThrows(ConfigurationException.class, () -> history(-1, FIELDS));
+    }
+
+    @Test
+    void isOffWithoutHistoryEnabled() throws Exception {
+        HistoryConfiguration config = config(0);
+        config.setEnabled(false);
+        TelemetryHistory history = new TelemetryHistory(config, store(), table(FIELDS));
+        Assertions.assertFalse(history.isEnabled(0));
+        history.append(0, 1, heartbeat(10, 0));
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void queriesOnlySeeWholeRecords() throws InterruptedException {
+        // both fields of record t hold t and its timestamp is t % 1024, the 16 records in the ring never share a bucket
+        TelemetryHistory history = history(16, FIELDS);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int t = 0; !done.get(); t++) history.append(0, t % 1024, heartbeat(t, t));
+        });
+        writer.start();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+        int checked = 0;
+        try {
+            while (System.nanoTime() < end) {
+                for (HistoryRange.Bucket bucket : history.query(0, 0, 1024, 1024).buckets()) {
+                    Assertions.assertEquals(1, bucket.samples());
+                    long t = (long) bucket.fields().get("invStatus").avg();
+                    Assertions.assertEquals(bucket.start(), t % 1024, "timestamp and values of record " + t);
+                    Assertions.assertEquals(t / 10.0, bucket.fields().get("invOutputWatts").avg(), "record " + t);
+                    checked++;
+                }
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+        Assertions.assertTrue(checked > 0);
+    }
+
+    private TelemetryHistory history(int capacity, List<String> fields) {
+        return new TelemetryHistory(config(capacity), store(), table(fields));
+    }
+
+    private HistoryConfiguration config(int capacity) {
+        HistoryConfiguration config = new HistoryConfiguration();
+        config.setEnabled(true);
+        config.setDirectory(directory.toString());
+        config.setCapacity(capacity);
+        return config;
+    }
+
+    private static DeviceStateStore store() {
+        DevicesConfiguration devices = new DevicesConfiguration();
+        devices.setPowerstreams(List.of(DEVICE));
+        return new DeviceStateStore(devices);
+    }
+
+    private static HeartbeatFieldTable table(List<String> fields) {
+        StateConfiguration config = new StateConfiguration();
+        config.setFields(fields);
+        return new HeartbeatFieldTable(config);
+    }
+
+    private static int[] heartbeat(int watts, int status) {
+        int[] heartbeat = new int[HeartbeatFieldTable.SLOTS];
+        heartbeat[InverterHeartbeat.INV_OUTPUT_WATTS_FIELD_NUMBER] = watts;
+        heartbeat[InverterHeartbeat.INV_STATUS_FIELD_NUMBER] = status;
+        return heartbeat;
+    }
+}
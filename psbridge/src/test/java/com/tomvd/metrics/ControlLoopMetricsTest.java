@@ -0,0 +1,50 @@
+package com.tomvd.metrics;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+class ControlLoopMetricsTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void integratesGridEnergy() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ControlLoopMetrics metrics = new ControlLoopMetrics(registry, "pid", 0);
+        // 1000W for 36s is 10Wh imported, -500W for 36s 5Wh exported
+        metrics.sample(1000, SECOND);
+        metrics.sample(-500, 37 * SECOND);
+        metrics.sample(0, 73 * SECOND);
+        // a gap of more than a minute is not counted
+        metrics.sample(2000, 74 * SECOND);
+        metrics.sample(0, 200 * SECOND);
+
+        Assertions.assertEquals(10, energy(registry, "import"), 1e-9);
+        Assertions.assertEquals(5, energy(registry, "export"), 1e-9);
+    }
+
+    @Test
+    void recordsSettlingTime() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ControlLoopMetrics metrics = new ControlLoopMetrics(registry, "pid", 0);
+        metrics.sample(0, SECOND);
+        metrics.sample(400, 2 * SECOND);
+        metrics.sample(100, 3 * SECOND);
+        // back within 25W at 5s, settled once it stays there for 10s
+        metrics.sample(10, 5 * SECOND);
+        metrics.sample(-10, 10 * SECOND);
+        Timer settling = registry.get("psbridge.control.settling").timer();
+        Assertions.assertEquals(0, settling.count());
+        metrics.sample(0, 15 * SECOND);
+
+        Assertions.assertEquals(1, settling.count());
+        Assertions.assertEquals(3, settling.totalTime(TimeUnit.SECONDS), 1e-9);
+    }
+
+    private static double energy(SimpleMeterRegistry registry, String direction) {
+        return registry.get("psbridge.grid.energy").tag("direction", direction).counter().count();
+    }
+}
@@ -0,0 +1,67 @@
+package com.tomvd.mqtt;
+
+import com.tomvd.configuration.BrokerConfiguration;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// frames come from a paho client over a socket, so the broker reads them into pooled buffers like it does for devices.
+// They stay below the 8092 bytes Moquette takes by default
+class EmbeddedBrokerTest {
+    private static final int FRAMES = 4000;
+    private static final int FRAME_SIZE = 4096;
+
+    @Test
+    void releasesPublishedPayloads() throws Exception {
+        ResourceLeakDetector.Level level = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        BrokerConfiguration config = new BrokerConfiguration();
+        config.setHost("127.0.0.1");
+        config.setPort(port);
+        try (EmbeddedBroker broker = new EmbeddedBroker(config)) {
+            CountDownLatch warmedUp = new CountDownLatch(FRAMES);
+            CountDownLatch received = new CountDownLatch(2 * FRAMES);
+            EmbeddedMqttLink link = new EmbeddedMqttLink("test", "psbridge-test", broker);
+            link.subscribe("test/#", topic -> (t, payload) -> {
+                Assertions.assertEquals(FRAME_SIZE, payload.length);
+                warmedUp.countDown();
+                received.countDown();
+            });
+            MqttAsyncClient client = new MqttAsyncClient("tcp://127.0.0.1:" + port, "leak-test", new MemoryPersistence());
+            client.connect().waitForCompletion();
+            try {
+                // the first round fills the pools and the thread caches, a leak keeps the second round's memory too
+                publish(client);
+                Assertions.assertTrue(warmedUp.await(30, TimeUnit.SECONDS), "first round dispatched");
+                long before = PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory();
+                publish(client);
+                Assertions.assertTrue(received.await(30, TimeUnit.SECONDS), "second round dispatched");
+                long grown = PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory() - before;
+                Assertions.assertTrue(grown < FRAMES * FRAME_SIZE / 2, "direct memory grew by " + grown + " bytes");
+            } finally {
+                client.disconnect().waitForCompletion();
+                client.close();
+                link.close();
+            }
+        } finally {
+            ResourceLeakDetector.setLevel(level);
+        }
+    }
+
+    private static void publish(MqttAsyncClient client) throws Exception {
+        for (int i = 0; i < FRAMES; i++) {
+            client.publish("test/" + i, new byte[FRAME_SIZE], 0, false).waitForCompletion();
+        }
+    }
+}
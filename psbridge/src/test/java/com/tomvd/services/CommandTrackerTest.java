@@ -0,0 +1,206 @@
+package com.tomvd.services;
+
+import com.tomvd.cluster.ClusterMembership;
+import com.tomvd.configuration.ClusterConfiguration;
+import com.tomvd.configuration.CommandConfiguration;
+import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.metrics.BridgeMetrics;
+import com.tomvd.model.PowerStreamData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+// with a zero ack timeout every pending setting is due on the next resendExpired(), so nothing has to wait
+class CommandTrackerTest {
+    private static final String DEVICE = "HW51ZOH4SF100000";
+
+    private final DeviceStateStore store = new DeviceStateStore(devices());
+    private final FakeDevices devices = new FakeDevices();
+
+    @Test
+    void seqWrapsAroundToOne() {
+        Assertions.assertEquals(2, CommandTracker.next(1));
+        Assertions.assertEquals(Integer.MAX_VALUE, CommandTracker.next(Integer.MAX_VALUE - 1));
+        Assertions.assertEquals(1, CommandTracker.next(Integer.MAX_VALUE));
+        CommandTracker tracker = tracker(true);
+        int seq = tracker.nextSeq();
+        Assertions.assertTrue(seq > 0);
+        Assertions.assertEquals(seq + 1, tracker.nextSeq());
+    }
+
+    @Test
+    void matchesTheCurrentAttempt() {
+        CommandTracker tracker = tracker(true);
+        devices.publishPowerSetting(300, DEVICE);
+        Assertions.assertEquals(-1, tracker.acknowledged(DEVICE), "not acknowledged yet");
+        tracker.acked(0, devices.lastSeq + 1);
+        Assertions.assertEquals(1, tracker.getUnmatched());
+
+        tracker.acked(0, devices.lastSeq);
+        Assertions.assertEquals(1, tracker.getAcked());
+        Assertions.assertEquals(300, tracker.acknowledged(DEVICE));
+        tracker.acked(0, devices.lastSeq);
+        Assertions.assertEquals(2, tracker.getUnmatched(), "a second ack has nothing left to match");
+    }
+
+    @Test
+    void matchesThePreviousAttempt() {
+        CommandTracker tracker = tracker(true);
+        devices.publishPowerSetting(300, DEVICE);
+        int first = devices.lastSeq;
+        tracker.resendExpired();
+        Assertions.assertEquals(List.of(300, 300), devices.published);
+        Assertions.assertNotEquals(first, devices.lastSeq);
+
+        // the device answers the first attempt after it was already sent again
+        tracker.acked(0, first);
+        Assertions.assertEquals(1, tracker.getAcked());
+        Assertions.assertEquals(1, tracker.getRetried());
+        Assertions.assertEquals(300, tracker.acknowledged(DEVICE));
+    }
+
+    @Test
+    void failsAfterMaxRetries() {
+        CommandTracker tracker = tracker(true);
+        devices.publishPowerSetting(300, DEVICE);
+        tracker.resendExpired();
+        tracker.resendExpired();
+        Assertions.assertEquals(0, tracker.getFailed());
+        tracker.resendExpired();
+
+        Assertions.assertEquals(List.of(300, 300, 300), devices.published);
+        Assertions.assertEquals(2, tracker.getRetried());
+        Assertions.assertEquals(1, tracker.getFailed());
+        tracker.resendExpired();
+        Assertions.assertEquals(3, devices.published.size(), "nothing left to resend");
+        Assertions.assertEquals(-1, tracker.acknowledged(DEVICE));
+    }
+
+    @Test
+    void countsRetriesWhileOffline() {
+        CommandTracker tracker = tracker(true);
+        devices.publishPowerSetting(300, DEVICE);
+        devices.online = false;
+        for (int i = 0; i < 3; i++) tracker.resendExpired();
+
+        Assertions.assertEquals(List.of(300), devices.published);
+        Assertions.assertEquals(2, tracker.getRetried());
+        Assertions.assertEquals(1, tracker.getFailed());
+    }
+
+    @Test
+    void dropsSettingsOfDevicesNoLongerCommanded() {
+        CommandTracker tracker = tracker(false, false);
+        devices.publishPowerSetting(300, DEVICE);
+        tracker.resendExpired();
+
+        Assertions.assertEquals(List.of(300), devices.published);
+        Assertions.assertEquals(0, tracker.getRetried());
+        Assertions.assertEquals(0, tracker.getFailed());
+        tracker.acked(0, devices.lastSeq);
+        Assertions.assertEquals(1, tracker.getUnmatched());
+    }
+
+    @Test
+    void leaderTracksDevicesItDoesNotOwn() {
+        CommandTracker tracker = tracker(false, true);
+        devices.publishPowerSetting(300, DEVICE);
+        tracker.resendExpired();
+
+        Assertions.assertEquals(List.of(300, 300), devices.published);
+        Assertions.assertEquals(1, tracker.getRetried());
+        tracker.acked(0, devices.lastSeq);
+        Assertions.assertEquals(1, tracker.getAcked());
+        Assertions.assertEquals(300, tracker.acknowledged(DEVICE));
+    }
+
+    @Test
+    void newerSettingReplacesThePendingOne() {
+        CommandTracker tracker = tracker(true);
+        devices.publishPowerSetting(300, DEVICE);
+        int stale = devices.lastSeq;
+        devices.publishPowerSetting(0, DEVICE);
+        tracker.acked(0, stale);
+        Assertions.assertEquals(1, tracker.getUnmatched());
+
+        tracker.resendExpired();
+        Assertions.assertEquals(List.of(300, 0, 0), devices.published);
+    }
+
+    @Test
+    void successRatio() {
+        CommandTracker tracker = tracker(true);
+        Assertions.assertTrue(Double.isNaN(tracker.getSuccessRatio()));
+        devices.publishPowerSetting(300, DEVICE);
+        tracker.acked(0, devices.lastSeq);
+        Assertions.assertEquals(1.0, tracker.getSuccessRatio());
+
+        devices.publishPowerSetting(200, DEVICE);
+        for (int i = 0; i < 3; i++) tracker.resendExpired();
+        Assertions.assertEquals(0.5, tracker.getSuccessRatio());
+    }
+
+    private CommandTracker tracker(boolean owner) {
+        return tracker(owner, owner);
+    }
+
+    private CommandTracker tracker(boolean owner, boolean leader) {
+        CommandConfiguration config = new CommandConfiguration();
+        config.setAckTimeout(Duration.ZERO);
+        config.setMaxRetries(2);
+        ClusterConfiguration clusterConfig = new ClusterConfiguration();
+        // a clustered node that never joined owns nothing, whether it leads is up to the test
+        clusterConfig.setEnabled(!owner);
+        ClusterMembership cluster = new ClusterMembership(clusterConfig, devices(), null, null) {
+            @Override
+            public boolean isLeader() {
+                return leader;
+            }
+        };
+        // only resend() and submitPriority() are used, they don't need the scheduler
+        SetpointCoalescer commands = new SetpointCoalescer(() -> devices, store, config, null);
+        CommandTracker tracker = new CommandTracker(commands, cluster, store, config, new BridgeMetrics(new SimpleMeterRegistry()));
+        devices.tracker = tracker;
+        return tracker;
+    }
+
+    private static DevicesConfiguration devices() {
+        DevicesConfiguration devices = new DevicesConfiguration();
+        devices.setPowerstreams(List.of(DEVICE));
+        return devices;
+    }
+
+    // tells the tracker about every published setting, like EcoflowService does
+    private final class FakeDevices implements DeviceService {
+        CommandTracker tracker;
+        boolean online = true;
+        final List<Integer> published = new ArrayList<>();
+        int lastSeq;
+
+        @Override
+        public boolean publishPowerSetting(int i, String deviceId) {
+            lastSeq = tracker.nextSeq();
+            published.add(i);
+            tracker.sent(store.indexOf(deviceId), lastSeq, i);
+            return true;
+        }
+
+        @Override
+        public void setSl(ServiceLocator sl) {
+        }
+
+        @Override
+        public boolean isOnline() {
+            return online;
+        }
+
+        @Override
+        public List<PowerStreamData> getPowerStreams() {
+            return List.of();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.SmartConfiguration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+// kp 0.6, ki 0.15, no derivative and no meter filter, so every step can be worked out by hand
+class PidControllerTest {
+    private static final long SECOND = 1_000_000_000L;
+    private static final int MAX_POWER = 800;
+
+    @Test
+    void startsBumpless() {
+        PidController pid = new PidController(config(100));
+        Assertions.assertEquals(200, pid.update(500, 200, MAX_POWER, SECOND));
+    }
+
+    @Test
+    void limitsSlewRate() {
+        PidController pid = new PidController(config(100));
+        pid.update(500, 200, MAX_POWER, SECOND);
+        // raw output 0.6 * 500 + 200 + 0.15 * 500 = 575, at most 100W above 200 after one second
+        Assertions.assertEquals(300, pid.update(500, 200, MAX_POWER, 2 * SECOND));
+    }
+
+    @Test
+    void doesNotWindUpWhileClamped() {
+        PidController pid = new PidController(config(10_000));
+        pid.update(1000, MAX_POWER, MAX_POWER, SECOND);
+        for (int t = 2; t < 60; t++) {
+            Assertions.assertEquals(MAX_POWER, pid.update(1000, MAX_POWER, MAX_POWER, t * SECOND));
+        }
+        // the integrator was held at 800 - 0.6 * 1000 = 200, one second of -100 takes it to 185
+        Assertions.assertEquals(125, pid.update(-100, MAX_POWER, MAX_POWER, 60 * SECOND));
+    }
+
+    @Test
+    void resetStartsOverFromCurrentOutput() {
+        PidController pid = new PidController(config(100));
+        pid.update(500, 200, MAX_POWER, SECOND);
+        pid.update(500, 200, MAX_POWER, 2 * SECOND);
+        pid.reset();
+        Assertions.assertEquals(450, pid.update(-300, 450, MAX_POWER, 3 * SECOND));
+    }
+
+    @Test
+    void followsTheAppliedOutput() {
+        PidController pid = new PidController(config(10_000));
+        pid.update(0, 200, MAX_POWER, SECOND);
+        // 0.6 * 5 + 200 + 0.15 * 5 = 203.75, too small a change to be sent
+        Assertions.assertEquals(204, pid.update(5, 200, MAX_POWER, 2 * SECOND));
+        pid.applied(200);
+        // the integrator continues from 200 - 3 = 197 instead of 200.75
+        Assertions.assertEquals(201, pid.update(5, 200, MAX_POWER, 3 * SECOND));
+    }
+
+    private static SmartConfiguration config(int slewRate) {
+        SmartConfiguration config = new SmartConfiguration();
+        config.setMode("pid");
+        config.setKp(0.6);
+        config.setKi(0.15);
+        config.setKd(0);
+        config.setMeterFilter(Duration.ZERO);
+        config.setSlewRate(slewRate);
+        config.setGridTarget(0);
+        return config;
+    }
+}
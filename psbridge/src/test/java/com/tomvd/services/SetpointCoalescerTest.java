@@ -0,0 +1,192 @@
+package com.tomvd.services;
+
+import com.tomvd.configuration.CommandConfiguration;
+import com.tomvd.configuration.DevicesConfiguration;
+import com.tomvd.model.PowerStreamData;
+import io.micronaut.scheduling.TaskScheduler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+
+// drains only run when the test runs them, so a min-interval of a minute never passes on its own
+class SetpointCoalescerTest {
+    private static final String DEVICE = "HW51ZOH4SF100000";
+
+    private final FakeDevices devices = new FakeDevices();
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final SetpointCoalescer commands = coalescer();
+
+    @Test
+    void sendsOnlyTheLatestSetpoint() {
+        commands.submit(DEVICE, 100);
+        commands.submit(DEVICE, 200);
+        commands.submit(DEVICE, 300);
+        Assertions.assertEquals(1, scheduler.tasks.size(), "one drain for the three");
+        scheduler.runAll();
+
+        Assertions.assertEquals(List.of(300), devices.published);
+        Assertions.assertEquals(3, commands.getSubmitted());
+        Assertions.assertEquals(1, commands.getSent());
+    }
+
+    @Test
+    void spacesSetpointsByMinInterval() {
+        commands.submit(DEVICE, 100);
+        Assertions.assertTrue(scheduler.delays.get(0).isZero(), "the first one goes out right away");
+        scheduler.runAll();
+        commands.submit(DEVICE, 200);
+        Assertions.assertTrue(scheduler.delays.get(1).compareTo(Duration.ofSeconds(59)) > 0, scheduler.delays.get(1).toString());
+
+        // a drain that runs too early puts itself back
+        scheduler.runAll();
+        Assertions.assertEquals(List.of(100), devices.published);
+        Assertions.assertEquals(1, scheduler.tasks.size());
+        Assertions.assertTrue(scheduler.delays.get(2).compareTo(Duration.ofSeconds(59)) > 0, scheduler.delays.get(2).toString());
+    }
+
+    @Test
+    void priorityDropsThePendingSetpoint() {
+        commands.submit(DEVICE, 100);
+        scheduler.runAll();
+        commands.submit(DEVICE, 200);
+        commands.submitPriority(DEVICE, 0);
+        Assertions.assertEquals(List.of(100, 0), devices.published, "the priority one doesn't wait for the interval");
+
+        scheduler.runAll();
+        Assertions.assertEquals(List.of(100, 0), devices.published, "200 was dropped");
+        Assertions.assertTrue(scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    void holdsTheLatestWhileOfflineUntilFlush() {
+        devices.online = false;
+        commands.submit(DEVICE, 100);
+        scheduler.runAll();
+        commands.submitPriority(DEVICE, 0);
+        scheduler.runAll();
+        Assertions.assertTrue(devices.published.isEmpty());
+
+        devices.online = true;
+        commands.flush();
+        scheduler.runAll();
+        Assertions.assertEquals(List.of(0), devices.published);
+        commands.flush();
+        Assertions.assertTrue(scheduler.tasks.isEmpty(), "nothing left to flush");
+    }
+
+    @Test
+    void countsOnlyPublishedSetpoints() {
+        devices.accept = false;
+        commands.submitPriority(DEVICE, 0);
+        Assertions.assertEquals(List.of(0), devices.published);
+        Assertions.assertEquals(0, commands.getSent());
+    }
+
+    @Test
+    void resendGivesWayToNewerSetpoints() {
+        commands.submit(DEVICE, 100);
+        commands.resend(DEVICE, 50, () -> true);
+        Assertions.assertTrue(devices.published.isEmpty(), "100 is still pending");
+        scheduler.runAll();
+
+        commands.resend(DEVICE, 100, () -> false);
+        Assertions.assertEquals(List.of(100), devices.published, "the resent setpoint was replaced");
+        commands.resend(DEVICE, 100, () -> true);
+        Assertions.assertEquals(List.of(100, 100), devices.published);
+        devices.online = false;
+        commands.resend(DEVICE, 100, () -> true);
+        Assertions.assertEquals(2, devices.published.size());
+    }
+
+    @Test
+    void ignoresUnknownDevices() {
+        commands.submit("HW5", 100);
+        commands.submitPriority("HW5", 0);
+        Assertions.assertTrue(scheduler.tasks.isEmpty());
+        Assertions.assertTrue(devices.published.isEmpty());
+        Assertions.assertEquals(0, commands.getSubmitted());
+    }
+
+    private SetpointCoalescer coalescer() {
+        CommandConfiguration config = new CommandConfiguration();
+        config.setMinInterval(Duration.ofMinutes(1));
+        DevicesConfiguration devicesConfiguration = new DevicesConfiguration();
+        devicesConfiguration.setPowerstreams(List.of(DEVICE));
+        return new SetpointCoalescer(() -> devices, new DeviceStateStore(devicesConfiguration), config, scheduler);
+    }
+
+    private static final class FakeDevices implements DeviceService {
+        boolean online = true;
+        boolean accept = true;
+        final List<Integer> published = new ArrayList<>();
+
+        @Override
+        public boolean publishPowerSetting(int i, String deviceId) {
+            published.add(i);
+            return accept;
+        }
+
+        @Override
+        public void setSl(ServiceLocator sl) {
+        }
+
+        @Override
+        public boolean isOnline() {
+            return online;
+        }
+
+        @Override
+        public List<PowerStreamData> getPowerStreams() {
+            return List.of();
+        }
+    }
+
+    // keeps the delayed tasks until runAll(), whatever the delay
+    private static final class FakeScheduler implements TaskScheduler {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Duration> delays = new ArrayList<>();
+
+        void runAll() {
+            List<Runnable> due = new ArrayList<>(tasks);
+            tasks.clear();
+            due.forEach(Runnable::run);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Duration delay, Runnable command) {
+            delays.add(delay);
+            tasks.add(command);
+            return null;
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Duration delay, Callable<V> callable) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(String cron, Runnable command) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(String cron, Callable<V> command) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Duration initialDelay, Duration period, Runnable command) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Duration initialDelay, Duration delay, Runnable command) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.tomvd.simulator;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Connects N fake PowerStreams and batteries to a broker. Devices are spread over at most MAX_CONNECTIONS client
+connections so a few hundred of them don't need a few hundred Paho clients (and their threads); each connection only
+subscribes to the command topics of its own devices. Heartbeats are staggered over the interval like a real fleet.
+
+./gradlew simulate --args="tcp://localhost:1883 10 1 1s 5s"
+ */
+public class DeviceSimulator implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceSimulator.class);
+    private static final int MAX_CONNECTIONS = 32;
+
+    // called from the receiving connection's thread with System.nanoTime() of arrival
+    @FunctionalInterface
+    public interface CommandListener {
+        void onPowerSetting(SimulatedPowerStream device, int deciWatts, long receivedNanos);
+    }
+
+    private final String serverUri;
+    private final Duration heartbeatInterval;
+    private final Duration batteryInterval;
+    private final List<SimulatedPowerStream> powerStreams = new ArrayList<>();
+    private final List<SimulatedBattery> batteries = new ArrayList<>();
+    private final List<MqttAsyncClient> clients = new ArrayList<>();
+    private final Map<String, SimulatedPowerStream> byCommandTopic = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile CommandListener commandListener = (device, deciWatts, receivedNanos) -> {};
+
+    public DeviceSimulator(String serverUri, int powerStreamCount, int batteryCount, Duration heartbeatInterval, Duration batteryInterval) {
+        this.serverUri = serverUri;
+        this.heartbeatInterval = heartbeatInterval;
+        this.batteryInterval = batteryInterval;
+        for (int i = 0; i < powerStreamCount; i++) {
+            SimulatedPowerStream device = new SimulatedPowerStream(powerStreamSerial(i));
+            powerStreams.add(device);
+            byCommandTopic.put(device.getCommandTopic(), device);
+        }
+        for (int i = 0; i < batteryCount; i++) {
+            batteries.add(new SimulatedBattery(batterySerial(i)));
+        }
+    }
+
+    // 16 characters, same shape as the real ones
+    public static String powerStreamSerial(int i) {
+        return String.format("HW51SIM%09d", i);
+    }
+
+    public static String batterySerial(int i) {
+        return String.format("R621SIM%09d", i);
+    }
+
+    public List<SimulatedPowerStream> getPowerStreams() {
+        return powerStreams;
+    }
+
+    public List<SimulatedBattery> getBatteries() {
+        return batteries;
+    }
+
+    public void setCommandListener(CommandListener commandListener) {
+        this.commandListener = commandListener;
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    // publishes the client refused, its in-flight window was full
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public void start() throws MqttException {
+        int devices = powerStreams.size() + batteries.size();
+        int connections = Math.max(1, Math.min(MAX_CONNECTIONS, devices));
+        for (int i = 0; i < connections; i++) {
+            clients.add(connect("psbridge-sim-" + i));
+        }
+        long intervalNanos = heartbeatInterval.toNanos();
+        for (int i = 0; i < powerStreams.size(); i++) {
+            SimulatedPowerStream device = powerStreams.get(i);
+            MqttAsyncClient client = clients.get(i % connections);
+            client.subscribe(device.getCommandTopic(), 0).waitForCompletion();
+            scheduler.scheduleAtFixedRate(() -> publish(client, device.getUpstreamTopic(), device.heartbeat()),
+                    intervalNanos * i / powerStreams.size(), intervalNanos, TimeUnit.NANOSECONDS);
+        }
+        long batteryNanos = batteryInterval.toNanos();
+        for (int i = 0; i < batteries.size(); i++) {
+            SimulatedBattery battery = batteries.get(i);
+            MqttAsyncClient client = clients.get((powerStreams.size() + i) % connections);
+            scheduler.scheduleAtFixedRate(() -> publish(client, battery.getPropertyTopic(), battery.bmsStatus()),
+                    batteryNanos * i / batteries.size(), batteryNanos, TimeUnit.NANOSECONDS);
+        }
+        LOG.info("Simulating {} powerstreams and {} batteries on {} connections", powerStreams.size(), batteries.size(), connections);
+    }
+
+    private MqttAsyncClient connect(String clientId) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(serverUri, clientId, new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(10_000);
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                LOG.warn("Simulator connection {} lost: {}", clientId, cause.toString());
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                long received = System.nanoTime();
+                SimulatedPowerStream device = byCommandTopic.get(topic);
+                if (device == null) return;
+                int deciWatts = device.onCommand(message.getPayload());
+                if (deciWatts < 0) return;
+                publish(client, device.getUpstreamTopic(), device.ack());
+                commandListener.onPowerSetting(device, deciWatts, received);
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        client.connect(options).waitForCompletion();
+        return client;
+    }
+
+    private void publish(MqttAsyncClient client, String topic, byte[] payload) {
+        try {
+            client.publish(topic, payload, 0, false);
+            published.increment();
+        } catch (MqttException e) {
+            dropped.increment();
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (MqttAsyncClient client : clients) {
+            try {
+                client.disconnect().waitForCompletion();
+                client.close();
+            } catch (MqttException e) {
+                LOG.debug("Error closing simulator connection: {}", e.toString());
+            }
+        }
+    }
+
+    // <server-uri> [powerstreams] [batteries] [heartbeat interval] [battery interval]
+    public static void main(String[] args) throws Exception {
+        String serverUri = args.length > 0 ? args[0] : "tcp://localhost:1883";
+        int powerStreams = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int batteries = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        Duration heartbeat = args.length > 3 ? Duration.parse("PT" + args[3]) : Duration.ofSeconds(1);
+        Duration battery = args.length > 4 ? Duration.parse("PT" + args[4]) : Duration.ofSeconds(5);
+        DeviceSimulator simulator = new DeviceSimulator(serverUri, powerStreams, batteries, heartbeat, battery);
+        simulator.setCommandListener((device, deciWatts, receivedNanos) ->
+                LOG.info("{} power setting {} W", device.getSerialNumber(), deciWatts / 10.0));
+        Runtime.getRuntime().addShutdownHook(new Thread(simulator::close));
+        simulator.start();
+        Thread.currentThread().join();
+    }
+}
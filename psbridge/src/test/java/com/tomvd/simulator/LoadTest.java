@@ -0,0 +1,140 @@
+package com.tomvd.simulator;
+
+import com.tomvd.services.SetpointCoalescer;
+import io.micronaut.context.ApplicationContext;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Runs psbridge against an embedded broker and the device simulator, then reports the sustained rate of upstream
+heartbeats and of state messages psbridge publishes, plus the command round trip: setpower published on the Home
+Assistant side until the simulated PowerStream decoded the matching setMessage.
+Excluded from ./gradlew test, run it with ./gradlew loadTest (-Dloadtest.seconds=60 for a longer measurement).
+ */
+@Tag("load")
+class LoadTest {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+    private static final Duration HEARTBEAT_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration BATTERY_INTERVAL = Duration.ofSeconds(5);
+    private static final long WARMUP_MILLIS = 5_000;
+    private static final long COMMAND_INTERVAL_MILLIS = 200;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 10, 100, 500})
+    void sustainedLoad(int devices) throws Exception {
+        long measureMillis = TimeUnit.SECONDS.toMillis(Long.getLong("loadtest.seconds", 30));
+        try (TestBroker broker = TestBroker.start();
+             DeviceSimulator simulator = new DeviceSimulator(broker.getServerUri(), devices, 1, HEARTBEAT_INTERVAL, BATTERY_INTERVAL);
+             ApplicationContext bridge = ApplicationContext.run(bridgeProperties(broker.getServerUri(), simulator))) {
+
+            // sn -> System.nanoTime() of the setpower publish, and the deciwatts it should arrive as
+            Map<String, long[]> pendingCommands = new ConcurrentHashMap<>();
+            List<Long> roundTrips = Collections.synchronizedList(new ArrayList<>());
+            simulator.setCommandListener((device, deciWatts, receivedNanos) -> {
+                long[] pending = pendingCommands.get(device.getSerialNumber());
+                if (pending != null && pending[1] == deciWatts && pendingCommands.remove(device.getSerialNumber(), pending)) {
+                    roundTrips.add(receivedNanos - pending[0]);
+                }
+            });
+            simulator.start();
+
+            LongAdder states = new LongAdder();
+            MqttAsyncClient homeAssistant = new MqttAsyncClient(broker.getServerUri(), "loadtest-ha", new MemoryPersistence());
+            homeAssistant.setCallback(new MqttCallback() {
+                @Override
+                public void connectionLost(Throwable cause) {
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                    states.increment();
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                }
+            });
+            homeAssistant.connect().waitForCompletion();
+            homeAssistant.subscribe("ecoflow/+/state", 0).waitForCompletion();
+
+            Thread.sleep(WARMUP_MILLIS);
+            roundTrips.clear();
+            long upstreamStart = simulator.getPublished();
+            long statesStart = states.sum();
+            long start = System.nanoTime();
+            int command = 0;
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(measureMillis)) {
+                SimulatedPowerStream device = simulator.getPowerStreams().get(command % devices);
+                // a different value every time, so the coalescer never drops it as a repeat
+                int watts = 100 + (command * 7) % 600;
+                pendingCommands.put(device.getSerialNumber(), new long[]{System.nanoTime(), watts * 10L});
+                homeAssistant.publish("ecoflow/" + device.getSerialNumber() + "/setpower",
+                        String.valueOf(watts).getBytes(StandardCharsets.UTF_8), 0, false);
+                command++;
+                Thread.sleep(COMMAND_INTERVAL_MILLIS);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double upstreamRate = (simulator.getPublished() - upstreamStart) / seconds;
+            double stateRate = (states.sum() - statesStart) / seconds;
+            homeAssistant.disconnect().waitForCompletion();
+            homeAssistant.close();
+
+            List<Long> sorted = new ArrayList<>(roundTrips);
+            Collections.sort(sorted);
+            long sent = bridge.getBean(SetpointCoalescer.class).getSent();
+            LOG.info(String.format(Locale.ROOT, "devices=%d upstream=%.1f msg/s state=%.1f msg/s simulator-dropped=%d commands=%d/%d "
+                            + "bridge-sent=%d rtt p50=%.1f ms p99=%.1f ms max=%.1f ms",
+                    devices, upstreamRate, stateRate, simulator.getDropped(), sorted.size(), command, sent,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0)));
+
+            Assertions.assertTrue(stateRate > 0, "psbridge published no state");
+            Assertions.assertFalse(sorted.isEmpty(), "no power setting made it to a simulated device");
+            Assertions.assertTrue(sent >= sorted.size(), "psbridge counted " + sent + " setpoints sent, " + sorted.size() + " arrived");
+        }
+    }
+
+    private static Map<String, Object> bridgeProperties(String serverUri, DeviceSimulator simulator) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("devices.powerstreams", simulator.getPowerStreams().stream().map(SimulatedPowerStream::getSerialNumber).toList());
+        properties.put("devices.batteries", simulator.getBatteries().stream().map(SimulatedBattery::getSerialNumber).toList());
+        properties.put("mqtt.client.server-uri", serverUri);
+        properties.put("mqtt.client.enable-discovery", false);
+        properties.put("mqtt.client.max-inflight", 10_000);
+        properties.put("smart.enabled", false);
+        // every heartbeat becomes a state message
+        properties.put("state.watt-deadband", 0);
+        properties.put("state.volt-deadband", 0);
+        properties.put("state.ampere-deadband", 0);
+        properties.put("state.celsius-deadband", 0);
+        properties.put("commands.min-interval", "0s");
+        properties.put("ingest.queue-capacity", 64);
+        return properties;
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return Double.NaN;
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+}
@@ -0,0 +1,37 @@
+package com.tomvd.simulator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+// a fake River 2 Pro, posting a trimmed down bmsStatus message on its property topic
+public class SimulatedBattery {
+    private final String serialNumber;
+    private double soc = ThreadLocalRandom.current().nextDouble(40, 90);
+    private long id = 1;
+
+    public SimulatedBattery(String serialNumber) {
+        this.serialNumber = serialNumber;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public String getPropertyTopic() {
+        return "/sys/72/" + serialNumber + "/thing/property/post";
+    }
+
+    public synchronized byte[] bmsStatus() {
+        soc = Math.max(5, Math.min(100, soc + ThreadLocalRandom.current().nextDouble(-0.05, 0.05)));
+        long now = System.currentTimeMillis();
+        String json = String.format(Locale.ROOT,
+                "{\"id\":%d,\"version\":\"1.0\",\"cmdId\":50,\"cmdFunc\":32,\"typeCode\":\"bmsStatus\",\"moduleType\":2,"
+                        + "\"moduleSn\":\"%s\",\"params\":{\"num\":0,\"type\":1,\"soc\":%d,\"vol\":52341,\"amp\":-1203,"
+                        + "\"temp\":27,\"designCap\":40000,\"remainCap\":%d,\"fullCap\":40000,\"cycles\":112,\"soh\":100,"
+                        + "\"f32ShowSoc\":%.5f,\"inputWatts\":0,\"outputWatts\":63,\"remainTime\":2971,\"bmsSn\":\"%s\"},"
+                        + "\"timestamp\":%d,\"addr\":\"ems\"}",
+                id++, serialNumber, (int) soc, (int) (soc * 400), soc, serialNumber, now);
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
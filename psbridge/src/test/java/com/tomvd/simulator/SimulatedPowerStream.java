@@ -0,0 +1,121 @@
+package com.tomvd.simulator;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.tomvd.psbridge.Header;
+import com.tomvd.psbridge.HeaderMessage;
+import com.tomvd.psbridge.InverterHeartbeat;
+import com.tomvd.psbridge.setHeader;
+import com.tomvd.psbridge.setMessage;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+A fake PowerStream inverter. Every heartbeat() is a HeaderMessage carrying an InverterHeartbeat (cmd_func 20,
+cmd_id 1) the way the real device sends it upstream: PV input drifting around, the output following the last power
+setting over a couple of heartbeats, values in tenths. Power setting commands (cmd_func 20, cmd_id 129) change the
+permanent watts and are acknowledged upstream, keepalives and anything else on the command topic are ignored.
+ */
+public class SimulatedPowerStream {
+    private static final int MAX_DECI_WATTS = 8000;
+    private final String serialNumber;
+    private volatile int permanentDeciWatts;
+    private volatile int lastCommandSeq;
+    // only touched by whoever calls heartbeat(), one thread at a time
+    private int outputDeciWatts;
+    private double pvDeciWatts;
+    private int seq;
+
+    public SimulatedPowerStream(String serialNumber) {
+        this.serialNumber = serialNumber;
+        this.pvDeciWatts = ThreadLocalRandom.current().nextInt(1500, 4000);
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public String getUpstreamTopic() {
+        return "/sys/75/" + serialNumber + "/thing/protobuf/upstream";
+    }
+
+    public String getCommandTopic() {
+        return "/sys/75/" + serialNumber + "/thing/property/cmd";
+    }
+
+    public int getPermanentDeciWatts() {
+        return permanentDeciWatts;
+    }
+
+    public synchronized byte[] heartbeat() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        pvDeciWatts = Math.max(0, Math.min(6000, pvDeciWatts + random.nextInt(-100, 101)));
+        outputDeciWatts += (permanentDeciWatts - outputDeciWatts) / 2;
+        int pv1Watts = (int) (pvDeciWatts * 0.55);
+        int pv2Watts = (int) pvDeciWatts - pv1Watts;
+        int pv1Volt = 380 + random.nextInt(-5, 6);
+        int pv2Volt = 375 + random.nextInt(-5, 6);
+        InverterHeartbeat heartbeat = InverterHeartbeat.newBuilder()
+                .setPv1InputVolt(pv1Volt)
+                .setPv1OpVolt(pv1Volt - 2)
+                .setPv1InputCur(pv1Watts * 10 / pv1Volt)
+                .setPv1InputWatts(pv1Watts)
+                .setPv1Temp(350 + random.nextInt(20))
+                .setPv2InputVolt(pv2Volt)
+                .setPv2OpVolt(pv2Volt - 2)
+                .setPv2InputCur(pv2Watts * 10 / pv2Volt)
+                .setPv2InputWatts(pv2Watts)
+                .setPv2Temp(350 + random.nextInt(20))
+                .setBatInputVolt(520)
+                .setBatTemp(270)
+                .setBatSoc(78)
+                .setLlcTemp(380 + random.nextInt(20))
+                .setInvOpVolt(2300 + random.nextInt(-20, 21))
+                .setInvOutputWatts(outputDeciWatts)
+                .setInvOutputCur(outputDeciWatts * 10 / 2300)
+                .setInvTemp(400 + random.nextInt(20))
+                .setInvFreq(500)
+                .setPermanentWatts(permanentDeciWatts)
+                .setRatedPower(MAX_DECI_WATTS)
+                .setLowerLimit(10)
+                .setUpperLimit(100)
+                .setInvOnOff(1)
+                .build();
+        Header header = Header.newBuilder()
+                .setPdata(heartbeat.toByteString())
+                .setSrc(35)
+                .setDest(32)
+                .setDSrc(1)
+                .setDDest(1)
+                .setCmdFunc(20)
+                .setCmdId(1)
+                .setDataLen(heartbeat.getSerializedSize())
+                .setSeq(seq++)
+                .setVersion(19)
+                .setPayloadVer(1)
+                .setDeviceSn(serialNumber)
+                .build();
+        return HeaderMessage.newBuilder().addHeader(header).build().toByteArray();
+    }
+
+    // returns the new setting in deciwatts, or -1 when the payload was not a power setting
+    public int onCommand(byte[] payload) throws InvalidProtocolBufferException {
+        setHeader header = setMessage.parseFrom(payload).getHeader();
+        if (header.getCmdFunc() != 20 || header.getCmdId() != 129) return -1;
+        permanentDeciWatts = Math.min(MAX_DECI_WATTS, header.getPdata().getValue());
+        lastCommandSeq = header.getSeq();
+        return permanentDeciWatts;
+    }
+
+    // acknowledges the last power setting, a frame of the same type echoing its seq
+    public byte[] ack() {
+        Header header = Header.newBuilder()
+                .setSrc(53)
+                .setDest(32)
+                .setCmdFunc(20)
+                .setCmdId(129)
+                .setIsAck(1)
+                .setSeq(lastCommandSeq)
+                .build();
+        return HeaderMessage.newBuilder().addHeader(header).build().toByteArray();
+    }
+}
@@ -0,0 +1,43 @@
+package com.tomvd.simulator;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.IConfig;
+import io.moquette.broker.config.MemoryConfig;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+// an in-memory Moquette broker on a free local port, for tests
+public class TestBroker implements AutoCloseable {
+    private final Server server = new Server();
+    private final int port;
+
+    private TestBroker(int port) {
+        this.port = port;
+    }
+
+    public static TestBroker start() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        TestBroker broker = new TestBroker(port);
+        Properties properties = new Properties();
+        properties.setProperty(IConfig.HOST_PROPERTY_NAME, "127.0.0.1");
+        properties.setProperty(IConfig.PORT_PROPERTY_NAME, String.valueOf(port));
+        properties.setProperty(IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+        properties.setProperty(IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME, "false");
+        broker.server.startServer(new MemoryConfig(properties));
+        return broker;
+    }
+
+    public String getServerUri() {
+        return "tcp://127.0.0.1:" + port;
+    }
+
+    @Override
+    public void close() {
+        server.stopServer();
+    }
+}